@@ -0,0 +1,103 @@
+/******************************************************************************
+ *
+ *  Copyright 2011-2012 Tavendo GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package de.tavendo.autobahn;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import android.util.Log;
+
+/**
+ * Throughput of client frame masking: WebSocketWriter.maskPayload() on the
+ * copy in the output buffer, against the loop the writer used before,
+ * masking the caller's array octet by octet and then copying it.
+ *
+ * Results are logged (tag MaskingBenchmark) in MB/s per payload size, the
+ * figures of the last round are reported.
+ */
+public class MaskingBenchmark extends TestCase {
+
+	private static final String TAG = "MaskingBenchmark";
+
+	private static final int TOTAL = 64 * 1024 * 1024;
+	private static final int ROUNDS = 3;
+	private static final int[] SIZES = {16, 125, 1024, 64 * 1024};
+
+	/// Payload offset in the buffer, as behind a short masked frame header.
+	private static final int HEADER = 6;
+
+
+	public void testThroughput() throws Exception {
+		Random random = new Random(1);
+		for (int round = 1; round <= ROUNDS; ++round) {
+			for (int size : SIZES) {
+				byte[] payload = new byte[size];
+				random.nextBytes(payload);
+				ByteBuffer buffer = ByteBuffer.allocate(size + 14);
+				int mask = random.nextInt();
+
+				double octets = octetLoop(payload, buffer, mask);
+				double words = wordLoop(payload, buffer, mask);
+				if (round == ROUNDS) {
+					Log.i(TAG, String.format("%d octets: octet=%.0f word=%.0f MB/s",
+							size, octets, words));
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Mask the array in place, octet by octet, then copy it.
+	 */
+	private static double octetLoop(byte[] payload, ByteBuffer buffer, int mask) {
+		byte[] masks = {(byte) (mask >> 24), (byte) (mask >> 16), (byte) (mask >> 8), (byte) mask};
+		long start = System.nanoTime();
+		for (int done = 0; done < TOTAL; done += payload.length) {
+			buffer.clear();
+			buffer.position(HEADER);
+			for (int i = 0; i < payload.length; ++i) {
+				payload[i] ^= masks[i % 4];
+			}
+			buffer.put(payload, 0, payload.length);
+		}
+		return megabytesPerSecond(start);
+	}
+
+
+	/**
+	 * Copy the array, then mask the copy a long at a time.
+	 */
+	private static double wordLoop(byte[] payload, ByteBuffer buffer, int mask) {
+		long start = System.nanoTime();
+		for (int done = 0; done < TOTAL; done += payload.length) {
+			buffer.clear();
+			buffer.position(HEADER);
+			buffer.put(payload, 0, payload.length);
+			WebSocketWriter.maskPayload(buffer, HEADER, payload.length, mask);
+		}
+		return megabytesPerSecond(start);
+	}
+
+
+	private static double megabytesPerSecond(long start) {
+		return TOTAL * 1000.0 / (System.nanoTime() - start);
+	}
+}
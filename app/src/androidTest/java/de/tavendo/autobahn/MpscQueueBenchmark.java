@@ -0,0 +1,161 @@
+/******************************************************************************
+ *
+ *  Copyright 2011-2012 Tavendo GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package de.tavendo.autobahn;
+
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import junit.framework.TestCase;
+import android.util.Log;
+
+/**
+ * Multi-producer throughput of the writer's message hand-off: producers
+ * forwarding to one consumer thread through MpscQueue, parking and
+ * unparking as WebSocketWriter does, against a synchronized list with
+ * wait/notify, modelling the Handler MessageQueue the writer used before.
+ *
+ * Only the hand-off is measured, no frames are encoded. Results are logged
+ * (tag MpscQueueBenchmark) in million messages per second, the figures of
+ * the last round are reported.
+ */
+public class MpscQueueBenchmark extends TestCase {
+
+	private static final String TAG = "MpscQueueBenchmark";
+
+	private static final int MESSAGES = 2000000;
+	private static final int ROUNDS = 3;
+	private static final int[] PRODUCERS = {1, 2, 4, 8};
+
+
+	/// Hand-off under test, taken by the consumer thread only.
+	private interface Channel {
+		void put(Object message);
+		Object take() throws InterruptedException;
+	}
+
+
+	/// Synchronized list, consumer waits when empty, like a Looper.
+	private static class LockedChannel implements Channel {
+
+		private final LinkedList<Object> mList = new LinkedList<Object>();
+		private boolean mWaiting;
+
+		public synchronized void put(Object message) {
+			mList.add(message);
+			if (mWaiting) {
+				notify();
+			}
+		}
+
+		public synchronized Object take() throws InterruptedException {
+			while (mList.isEmpty()) {
+				mWaiting = true;
+				wait();
+				mWaiting = false;
+			}
+			return mList.poll();
+		}
+	}
+
+
+	/// MpscQueue, consumer parks as in WebSocketWriter.awaitMessages().
+	private static class MpscChannel implements Channel {
+
+		private final MpscQueue<Object> mQueue = new MpscQueue<Object>();
+		private final AtomicBoolean mWaiting = new AtomicBoolean(false);
+		private final Thread mConsumer = Thread.currentThread();
+
+		public void put(Object message) {
+			mQueue.offer(message);
+			if (mWaiting.get() && mWaiting.compareAndSet(true, false)) {
+				LockSupport.unpark(mConsumer);
+			}
+		}
+
+		public Object take() {
+			Object message;
+			while ((message = mQueue.poll()) == null) {
+				while (mQueue.isEmpty()) {
+					mWaiting.set(true);
+					if (!mQueue.isEmpty()) {
+						break;
+					}
+					LockSupport.park(this);
+				}
+				mWaiting.set(false);
+			}
+			return message;
+		}
+	}
+
+
+	public void testMultiProducerThroughput() throws Exception {
+		for (int round = 1; round <= ROUNDS; ++round) {
+			for (int producers : PRODUCERS) {
+				double locked = run(new LockedChannel(), producers);
+				double mpsc = run(new MpscChannel(), producers);
+				if (round == ROUNDS) {
+					Log.i(TAG, String.format("producers=%d locked=%.1f mpsc=%.1f Mmsg/s",
+							producers, locked, mpsc));
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Have producer threads put MESSAGES messages in total and take them
+	 * all on this thread.
+	 *
+	 * @return           Throughput in million messages per second.
+	 */
+	private double run(final Channel channel, int producers) throws Exception {
+		final int each = MESSAGES / producers;
+		final Object message = new Object();
+
+		Thread[] threads = new Thread[producers];
+		for (int i = 0; i < producers; ++i) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < each; ++j) {
+						channel.put(message);
+					}
+				}
+			};
+		}
+
+		long start = System.nanoTime();
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		int taken = 0;
+		while (taken < each * producers) {
+			assertSame(message, channel.take());
+			++taken;
+		}
+		long elapsed = System.nanoTime() - start;
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		return taken * 1000.0 / elapsed;
+	}
+}
@@ -0,0 +1,126 @@
+/******************************************************************************
+ *
+ *  Copyright 2011-2012 Tavendo GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package de.tavendo.autobahn;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+import android.util.Log;
+
+/**
+ * Throughput of Utf8Validator on ASCII-only, mixed and CJK-heavy text, for
+ * byte arrays and direct buffers, against the DFA run on every octet as
+ * the validator did before skipping ASCII runs.
+ *
+ * Results are logged (tag Utf8ValidatorBenchmark) in MB/s, the figures of
+ * the last round are reported.
+ */
+public class Utf8ValidatorBenchmark extends TestCase {
+
+   private static final String TAG = "Utf8ValidatorBenchmark";
+
+   private static final int SIZE = 64 * 1024;
+   private static final int TOTAL = 64 * 1024 * 1024;
+   private static final int ROUNDS = 3;
+
+   private static final String ASCII =
+         "{\"type\":\"event\",\"id\":12345,\"topic\":\"com.example.chat\",\"args\":[\"hello\",42,true]}";
+   private static final String MIXED =
+         "{\"name\":\"Jürgen Müller\",\"city\":\"Köln\",\"price\":\"12,50 €\",\"note\":\"déjà vu\"}";
+   private static final String CJK =
+         "{\"msg\":\"今日は良い天気ですね。明日も晴れるでしょう。中文测试文本，用于验证。\"}";
+
+
+   public void testThroughput() throws Exception {
+      String[] names = {"ascii", "mixed", "cjk"};
+      String[] texts = {ASCII, MIXED, CJK};
+
+      for (int round = 1; round <= ROUNDS; ++round) {
+         for (int i = 0; i < texts.length; ++i) {
+            byte[] data = repeat(texts[i].getBytes("UTF-8"));
+            ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+            direct.put(data);
+
+            double dfa = octetDfa(data);
+            double array = array(data);
+            double buffer = buffer(direct);
+            if (round == ROUNDS) {
+               Log.i(TAG, String.format("%s: dfa=%.0f array=%.0f direct=%.0f MB/s",
+                     names[i], dfa, array, buffer));
+            }
+         }
+      }
+   }
+
+
+   private static double array(byte[] data) {
+      Utf8Validator validator = new Utf8Validator();
+      long start = System.nanoTime();
+      for (int done = 0; done < TOTAL; done += data.length) {
+         validator.reset();
+         assertTrue(validator.validate(data, 0, data.length));
+      }
+      return megabytesPerSecond(start);
+   }
+
+
+   private static double buffer(ByteBuffer data) {
+      Utf8Validator validator = new Utf8Validator();
+      long start = System.nanoTime();
+      for (int done = 0; done < TOTAL; done += data.capacity()) {
+         validator.reset();
+         assertTrue(validator.validate(data, 0, data.capacity()));
+      }
+      return megabytesPerSecond(start);
+   }
+
+
+   /**
+    * Two table lookups on every octet, no ASCII runs skipped.
+    */
+   private static double octetDfa(byte[] data) {
+      long start = System.nanoTime();
+      for (int done = 0; done < TOTAL; done += data.length) {
+         int state = 0;
+         for (int i = 0; i < data.length; ++i) {
+            state = Utf8Validator.nextState(state, Utf8Validator.octetType(0xff & data[i]));
+         }
+         assertEquals(0, state);
+      }
+      return megabytesPerSecond(start);
+   }
+
+
+   private static double megabytesPerSecond(long start) {
+      return TOTAL * 1000.0 / (System.nanoTime() - start);
+   }
+
+
+   /**
+    * Repeat text to about SIZE octets, whole copies only.
+    */
+   private static byte[] repeat(byte[] text) {
+      int copies = SIZE / text.length;
+      byte[] data = new byte[copies * text.length];
+      for (int i = 0; i < copies; ++i) {
+         System.arraycopy(text, 0, data, i * text.length, text.length);
+      }
+      return data;
+   }
+}
@@ -0,0 +1,252 @@
+/******************************************************************************
+ *
+ *  Copyright 2011-2012 Tavendo GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package de.tavendo.autobahn;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for Utf8Validator, checking the ASCII fast path against the result
+ * of validating octet by octet, where the fast path never applies.
+ */
+public class Utf8ValidatorTest extends TestCase {
+
+   /// Valid multi-octet sequences of 2, 3 and 4 octets.
+   private static final byte[][] VALID = {
+      {(byte) 0xc3, (byte) 0xa4},
+      {(byte) 0xe2, (byte) 0x82, (byte) 0xac},
+      {(byte) 0xe4, (byte) 0xb8, (byte) 0xad},
+      {(byte) 0xf0, (byte) 0x9f, (byte) 0x98, (byte) 0x80},
+   };
+
+   /// Invalid sequences: stray continuation, overlong, surrogate, above U+10FFFF.
+   private static final byte[][] INVALID = {
+      {(byte) 0x80},
+      {(byte) 0xc0, (byte) 0xaf},
+      {(byte) 0xed, (byte) 0xa0, (byte) 0x80},
+      {(byte) 0xf4, (byte) 0x90, (byte) 0x80, (byte) 0x80},
+      {(byte) 0xe2, (byte) 0x82, (byte) 0x41},
+   };
+
+   /// Result of a validation: return value, isValid() and position().
+   private static class Result {
+      final boolean mOk;
+      final boolean mValid;
+      final int mPosition;
+
+      Result(boolean ok, Utf8Validator validator) {
+         mOk = ok;
+         mValid = validator.isValid();
+         mPosition = validator.position();
+      }
+
+      @Override
+      public boolean equals(Object o) {
+         Result other = (Result) o;
+         return mOk == other.mOk && mValid == other.mValid && mPosition == other.mPosition;
+      }
+
+      @Override
+      public int hashCode() {
+         return mPosition;
+      }
+
+      @Override
+      public String toString() {
+         return "[ok=" + mOk + " valid=" + mValid + " pos=" + mPosition + "]";
+      }
+   }
+
+
+   /**
+    * A multi-octet sequence is accepted wherever it sits relative to the
+    * 8 octet words, including straddling two words.
+    */
+   public void testValidSequenceStraddlingWords() {
+      for (byte[] sequence : VALID) {
+         for (int at = 0; at < 24; ++at) {
+            byte[] data = embed(sequence, at, 32);
+            Result result = validate(data);
+            assertEquals("at " + at, octetByOctet(data), result);
+            assertTrue("at " + at, result.mOk && result.mValid);
+            assertEquals(data.length, result.mPosition);
+         }
+      }
+   }
+
+
+   /**
+    * An invalid sequence is reported at the same position as octet by
+    * octet, wherever it sits relative to the 8 octet words.
+    */
+   public void testInvalidSequenceStraddlingWords() {
+      for (byte[] sequence : INVALID) {
+         for (int at = 0; at < 24; ++at) {
+            byte[] data = embed(sequence, at, 32);
+            Result result = validate(data);
+            assertEquals("at " + at, octetByOctet(data), result);
+            assertFalse("at " + at, result.mOk);
+         }
+      }
+   }
+
+
+   /**
+    * A sequence cut off at the end of the data validates, but does not end
+    * on a code point, and continues when the rest arrives.
+    */
+   public void testTruncatedSequence() {
+      for (byte[] sequence : VALID) {
+         for (int cut = 1; cut < sequence.length; ++cut) {
+            for (int at = 0; at < 16; ++at) {
+               byte[] data = embed(sequence, at, at + sequence.length);
+
+               Utf8Validator validator = new Utf8Validator();
+               assertTrue(validator.validate(data, 0, at + cut));
+               assertFalse("at " + at + " cut " + cut, validator.isValid());
+               assertTrue(validator.validate(data, at + cut, data.length - at - cut));
+               assertTrue("at " + at + " cut " + cut, validator.isValid());
+               assertEquals(data.length, validator.position());
+            }
+         }
+      }
+   }
+
+
+   /**
+    * Heap buffers, sliced heap buffers and direct buffers validate like the
+    * byte array they hold, also when split into chunks anywhere.
+    */
+   public void testByteBufferMatchesArray() {
+      Random random = new Random(1);
+      for (int n = 0; n < 500; ++n) {
+         byte[] data = randomText(random, 1 + random.nextInt(64), n % 5 == 0);
+         Result expected = validate(data);
+
+         ByteBuffer heap = ByteBuffer.wrap(data);
+         assertEquals(expected, validate(heap, 0, data.length));
+
+         ByteBuffer padded = ByteBuffer.allocate(data.length + 11);
+         padded.position(3);
+         padded.put(data);
+         padded.position(3);
+         ByteBuffer sliced = padded.slice();
+         assertEquals(expected, validate(sliced, 0, data.length));
+
+         ByteBuffer direct = ByteBuffer.allocateDirect(data.length + 11);
+         direct.position(5);
+         direct.put(data);
+         assertEquals(expected, validate(direct, 5, data.length));
+         assertEquals(5 + data.length, direct.position());
+
+         int split = random.nextInt(data.length + 1);
+         Utf8Validator validator = new Utf8Validator();
+         boolean ok = validator.validate(direct, 5, split) &&
+               validator.validate(direct, 5 + split, data.length - split);
+         assertEquals("split " + split, expected, new Result(ok, validator));
+      }
+   }
+
+
+   /**
+    * Random mixes of ASCII, multi-octet and invalid octets validate like
+    * octet by octet.
+    */
+   public void testRandomTextMatchesOctetByOctet() {
+      Random random = new Random(2);
+      for (int n = 0; n < 2000; ++n) {
+         byte[] data = randomText(random, 1 + random.nextInt(100), n % 3 == 0);
+         assertEquals(Arrays.toString(data), octetByOctet(data), validate(data));
+      }
+   }
+
+
+   /**
+    * Validate a byte array, checking that a direct buffer holding the same
+    * octets gives the same result.
+    */
+   private static Result validate(byte[] data) {
+      Utf8Validator validator = new Utf8Validator();
+      Result result = new Result(validator.validate(data), validator);
+
+      ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+      direct.put(data);
+      assertEquals("direct buffer", result, validate(direct, 0, data.length));
+      return result;
+   }
+
+
+   private static Result validate(ByteBuffer data, int position, int len) {
+      Utf8Validator validator = new Utf8Validator();
+      return new Result(validator.validate(data, position, len), validator);
+   }
+
+
+   /**
+    * Validate one octet per call, so that ASCII runs are never skipped.
+    */
+   private static Result octetByOctet(byte[] data) {
+      Utf8Validator validator = new Utf8Validator();
+      for (int i = 0; i < data.length; ++i) {
+         if (!validator.validate(data, i, 1)) {
+            return new Result(false, validator);
+         }
+      }
+      return new Result(true, validator);
+   }
+
+
+   /**
+    * Place a sequence at an offset within ASCII text of given length.
+    */
+   private static byte[] embed(byte[] sequence, int at, int length) {
+      byte[] data = new byte[Math.max(length, at + sequence.length)];
+      Arrays.fill(data, (byte) 'a');
+      System.arraycopy(sequence, 0, data, at, sequence.length);
+      return data;
+   }
+
+
+   /**
+    * Random text of ASCII runs and multi-octet sequences, with invalid
+    * sequences mixed in when requested.
+    */
+   private static byte[] randomText(Random random, int pieces, boolean invalid) {
+      byte[] data = new byte[pieces * 12];
+      int length = 0;
+      for (int i = 0; i < pieces; ++i) {
+         int kind = random.nextInt(invalid ? 10 : 9);
+         if (kind < 5) {
+            int run = 1 + random.nextInt(11);
+            for (int j = 0; j < run; ++j) {
+               data[length++] = (byte) (0x20 + random.nextInt(0x5f));
+            }
+         } else {
+            byte[] sequence = kind < 9 ?
+                  VALID[random.nextInt(VALID.length)] : INVALID[random.nextInt(INVALID.length)];
+            System.arraycopy(sequence, 0, data, length, sequence.length);
+            length += sequence.length;
+         }
+      }
+      return Arrays.copyOf(data, length);
+   }
+}
@@ -0,0 +1,549 @@
+/******************************************************************************
+ *
+ *  Copyright 2011-2012 Tavendo GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package de.tavendo.autobahn;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+
+/**
+ * Tests for WebSocketReader, run against a socket whose input is served
+ * in chunks of one octet, of random odd sizes, or as much as the reader
+ * asks for, so that handshake, frame headers and payloads are split
+ * across reads everywhere.
+ */
+public class WebSocketReaderTest extends TestCase {
+
+	/// Chunk sizes the socket input is served in, 0 for random odd sizes.
+	private static final int[] CHUNKINGS = {1, 0, Integer.MAX_VALUE};
+
+	private static final String HANDSHAKE = "HTTP/1.1 101 Switching Protocols\r\n"
+			+ "Upgrade: websocket\r\n"
+			+ "Connection: Upgrade\r\n"
+			+ "Sec-WebSocket-Protocol: chat\r\n"
+			+ "\r\n";
+
+	private static final String TEXT = "gr\u00fc\u00dfe \u4e2d\u6587 \ud83d\ude00!";
+
+
+	/// Socket input served in chunks.
+	private static class ChunkedInputStream extends InputStream {
+
+		private final byte[] mData;
+		private final int mChunk;
+		private final Random mRandom = new Random(1);
+		private int mPosition;
+
+		ChunkedInputStream(byte[] data, int chunk) {
+			mData = data;
+			mChunk = chunk;
+		}
+
+		@Override
+		public int read() {
+			return mPosition < mData.length ? mData[mPosition++] & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (mPosition == mData.length) {
+				return -1;
+			}
+			int chunk = mChunk > 0 ? mChunk : 2 * mRandom.nextInt(32) + 1;
+			int n = Math.min(Math.min(len, chunk), mData.length - mPosition);
+			System.arraycopy(mData, mPosition, b, off, n);
+			mPosition += n;
+			return n;
+		}
+	}
+
+
+	private WebSocketReader mReader;
+
+
+	/**
+	 * The handshake is parsed however it is split across reads, and its
+	 * headers are exposed. Data following it in the same read is processed.
+	 */
+	public void testHandshakeSplitAcrossReads() throws Exception {
+		for (int chunking : CHUNKINGS) {
+			List<Object> messages = receive(new WebSocketOptions(), chunking, frame(1, true, "hi".getBytes("UTF-8")));
+
+			WebSocketMessage.ServerHandshake handshake = (WebSocketMessage.ServerHandshake) messages.get(0);
+			assertTrue(handshake.mSuccess);
+			assertEquals(101, handshake.mStatusCode);
+			assertEquals("Switching Protocols", handshake.mStatusMessage);
+			assertEquals("chat", handshake.mHeaders.get("sec-websocket-protocol"));
+			assertEquals("websocket", handshake.mHeaders.get("upgrade"));
+			assertEquals("hi", ((WebSocketMessage.TextMessage) messages.get(1)).mPayload);
+			assertTrue(messages.get(2) instanceof WebSocketMessage.ConnectionLost);
+			assertEquals(3, messages.size());
+		}
+	}
+
+
+	/**
+	 * A failed upgrade posts ServerError before the failed handshake, and
+	 * nothing following the response is processed.
+	 */
+	public void testHandshakeErrorStatus() throws Exception {
+		for (int chunking : CHUNKINGS) {
+			byte[] response = concat("HTTP/1.1 403 Forbidden\r\nContent-Length: 0\r\n\r\n".getBytes("UTF-8"),
+					frame(1, true, "hi".getBytes("UTF-8")));
+			List<Object> messages = receiveRaw(new WebSocketOptions(), chunking, response);
+
+			assertEquals(2, messages.size());
+			WebSocketMessage.ServerError error = (WebSocketMessage.ServerError) messages.get(0);
+			assertEquals(403, error.mStatusCode);
+			assertEquals("Forbidden", error.mStatusMessage);
+			WebSocketMessage.ServerHandshake handshake = (WebSocketMessage.ServerHandshake) messages.get(1);
+			assertFalse(handshake.mSuccess);
+			assertEquals(403, handshake.mStatusCode);
+		}
+	}
+
+
+	/**
+	 * Text split into fragments anywhere, also within a code point, with a
+	 * ping in between, is delivered whole after the ping.
+	 */
+	public void testUtf8SplitAcrossFragmentsWithPing() throws Exception {
+		byte[] text = TEXT.getBytes("UTF-8");
+		for (WebSocketOptions options : textOptions()) {
+			for (int chunking : CHUNKINGS) {
+				for (int split = 1; split < text.length; ++split) {
+					List<Object> messages = receive(options, chunking,
+							frame(1, false, Arrays.copyOfRange(text, 0, split)),
+							frame(9, true, "p".getBytes("UTF-8")),
+							frame(0, true, Arrays.copyOfRange(text, split, text.length)));
+
+					assertTrue(messages.get(1) instanceof WebSocketMessage.Ping);
+					assertEquals("split " + split, TEXT, textOf(messages.get(2)));
+					assertTrue(messages.get(3) instanceof WebSocketMessage.ConnectionLost);
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * With fragment delivery, text fragments ending within a code point
+	 * are delivered as they arrive, the ping in between.
+	 */
+	public void testUtf8FragmentsDeliveredWithPing() throws Exception {
+		byte[] text = TEXT.getBytes("UTF-8");
+		WebSocketOptions options = new WebSocketOptions();
+		options.setDeliverMessageFragments(true);
+		for (int chunking : CHUNKINGS) {
+			for (int split = 1; split < text.length; ++split) {
+				List<Object> messages = receive(options, chunking,
+						frame(1, false, Arrays.copyOfRange(text, 0, split)),
+						frame(9, true, "p".getBytes("UTF-8")),
+						frame(0, true, Arrays.copyOfRange(text, split, text.length)));
+
+				WebSocketMessage.TextFragment first = (WebSocketMessage.TextFragment) messages.get(1);
+				assertTrue(messages.get(2) instanceof WebSocketMessage.Ping);
+				WebSocketMessage.TextFragment last = (WebSocketMessage.TextFragment) messages.get(3);
+				assertFalse(first.mLast);
+				assertTrue(last.mLast);
+				assertEquals("split " + split, TEXT, new String(concat(first.mPayload, last.mPayload), "UTF-8"));
+			}
+		}
+	}
+
+
+	/**
+	 * Invalid UTF-8 and text ending within a code point are protocol
+	 * violations, in single frame and fragmented messages alike.
+	 */
+	public void testInvalidAndTruncatedUtf8() throws Exception {
+		byte[] invalid = {'a', 'b', (byte) 0xc0, (byte) 0xaf, 'c'};
+		byte[] truncated = {'a', 'b', (byte) 0xe2, (byte) 0x82};
+
+		List<WebSocketOptions> variants = textOptions();
+		WebSocketOptions fragments = new WebSocketOptions();
+		fragments.setDeliverMessageFragments(true);
+		variants.add(fragments);
+
+		for (WebSocketOptions options : variants) {
+			for (int chunking : CHUNKINGS) {
+				assertViolation(receive(options, chunking, frame(1, true, invalid)));
+				assertViolation(receive(options, chunking, frame(1, true, truncated)));
+				assertViolation(receive(options, chunking,
+						frame(1, false, Arrays.copyOfRange(invalid, 0, 3)),
+						frame(0, true, Arrays.copyOfRange(invalid, 3, invalid.length))));
+				assertViolation(receive(options, chunking,
+						frame(1, false, Arrays.copyOfRange(truncated, 0, 3)),
+						frame(0, true, Arrays.copyOfRange(truncated, 3, truncated.length))));
+			}
+		}
+	}
+
+
+	/**
+	 * Empty text and binary messages, single frame or fragmented, are
+	 * delivered as empty.
+	 */
+	public void testEmptyMessages() throws Exception {
+		for (WebSocketOptions options : textOptions()) {
+			for (int chunking : CHUNKINGS) {
+				List<Object> messages = receive(options, chunking,
+						frame(1, true, new byte[0]),
+						frame(2, true, new byte[0]),
+						frame(1, false, new byte[0]),
+						frame(0, true, new byte[0]),
+						frame(2, false, new byte[0]),
+						frame(0, true, new byte[0]));
+
+				assertEquals("", textOf(messages.get(1)));
+				assertEquals(0, binaryOf(messages.get(2)).length);
+				assertEquals("", textOf(messages.get(3)));
+				assertEquals(0, binaryOf(messages.get(4)).length);
+				assertTrue(messages.get(5) instanceof WebSocketMessage.ConnectionLost);
+			}
+		}
+	}
+
+
+	/**
+	 * A frame at the frame size limit is delivered, one octet more is a
+	 * protocol violation.
+	 */
+	public void testFrameSizeLimit() throws Exception {
+		WebSocketOptions options = new WebSocketOptions();
+		options.setMaxFramePayloadSize(1000);
+		byte[] payload = randomPayload(1001);
+
+		for (int chunking : CHUNKINGS) {
+			List<Object> messages = receive(options, chunking,
+					frame(2, true, Arrays.copyOf(payload, 1000)),
+					frame(2, true, payload));
+
+			assertTrue(Arrays.equals(Arrays.copyOf(payload, 1000), binaryOf(messages.get(1))));
+			WebSocketMessage.ProtocolViolation violation = (WebSocketMessage.ProtocolViolation) messages.get(2);
+			assertEquals("frame payload too large", violation.mException.getMessage());
+		}
+	}
+
+
+	/**
+	 * Frames larger than the adaptive buffer, with 16 and 64 bit length,
+	 * grow it and arrive intact between small frames.
+	 */
+	public void testFramesLargerThanBuffer() throws Exception {
+		WebSocketOptions plain = new WebSocketOptions();
+		plain.setMaxFramePayloadSize(1 << 20);
+		plain.setMaxMessagePayloadSize(1 << 20);
+		WebSocketOptions pooled = new WebSocketOptions(plain);
+		pooled.setPayloadBufferPool(new PayloadBufferPool());
+
+		byte[] large = randomPayload(200000);
+		byte[] medium = randomPayload(30000);
+		for (WebSocketOptions options : new WebSocketOptions[] {plain, pooled}) {
+			for (int chunking : CHUNKINGS) {
+				List<Object> messages = receive(options, chunking,
+						frame(1, true, "a".getBytes("UTF-8")),
+						frame(2, true, large),
+						frame(1, true, "b".getBytes("UTF-8")),
+						frame(2, false, medium),
+						frame(0, true, large),
+						frame(1, true, "c".getBytes("UTF-8")));
+
+				assertEquals("a", textOf(messages.get(1)));
+				assertTrue(Arrays.equals(large, binaryOf(messages.get(2))));
+				assertEquals("b", textOf(messages.get(3)));
+				assertTrue(Arrays.equals(concat(medium, large), binaryOf(messages.get(4))));
+				assertEquals("c", textOf(messages.get(5)));
+				assertTrue(mReader.getReadBufferSize() > large.length);
+			}
+		}
+	}
+
+
+	/**
+	 * With batch delivery, the messages of one read are posted together,
+	 * in order.
+	 */
+	public void testBatching() throws Exception {
+		WebSocketOptions options = new WebSocketOptions();
+		options.setDeliverMessageBatches(true);
+
+		byte[][] frames = new byte[50][];
+		for (int i = 0; i < frames.length; ++i) {
+			frames[i] = frame(1, true, ("message " + i).getBytes("UTF-8"));
+		}
+
+		for (int chunking : CHUNKINGS) {
+			List<Object> posted = receiveRaw(options, chunking, concat(HANDSHAKE.getBytes("UTF-8"), concat(frames)));
+			List<Object> messages = flatten(posted);
+
+			assertTrue(messages.get(0) instanceof WebSocketMessage.ServerHandshake);
+			for (int i = 0; i < frames.length; ++i) {
+				assertEquals("message " + i, textOf(messages.get(i + 1)));
+			}
+			assertTrue(messages.get(frames.length + 1) instanceof WebSocketMessage.ConnectionLost);
+
+			int batches = 0;
+			for (Object message : posted) {
+				if (message instanceof WebSocketMessage.MessageBatch) {
+					++batches;
+				}
+			}
+			if (chunking == 1) {
+				assertEquals(0, batches);
+			} else if (chunking == Integer.MAX_VALUE) {
+				assertEquals(1, batches);
+				assertEquals(2, posted.size());
+			}
+		}
+	}
+
+
+	/**
+	 * Sockets created from a channel are read through the channel into a
+	 * direct buffer.
+	 */
+	public void testChannelReadPath() throws Exception {
+		byte[] text = TEXT.getBytes("UTF-8");
+		byte[] large = randomPayload(100000);
+		final byte[] response = concat(HANDSHAKE.getBytes("UTF-8"), concat(new byte[][] {
+				frame(1, false, Arrays.copyOfRange(text, 0, 4)),
+				frame(9, true, new byte[0]),
+				frame(0, true, Arrays.copyOfRange(text, 4, text.length)),
+				frame(2, true, large)}));
+
+		final ServerSocket server = new ServerSocket(0);
+		SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.getLocalPort()));
+		final Socket peer = server.accept();
+		server.close();
+
+		Thread sender = new Thread() {
+			@Override
+			public void run() {
+				try {
+					OutputStream out = peer.getOutputStream();
+					Random random = new Random(2);
+					for (int i = 0; i < response.length; ) {
+						int n = Math.min(response.length - i, 2 * random.nextInt(1000) + 1);
+						out.write(response, i, n);
+						out.flush();
+						i += n;
+					}
+					peer.close();
+				} catch (Exception e) {
+					// reader reports a lost connection
+				}
+			}
+		};
+		sender.start();
+
+		List<Object> messages = flatten(run(new WebSocketOptions(), channel.socket()));
+		sender.join(5000);
+		channel.close();
+
+		assertTrue(((WebSocketMessage.ServerHandshake) messages.get(0)).mSuccess);
+		assertTrue(messages.get(1) instanceof WebSocketMessage.Ping);
+		assertEquals(TEXT, textOf(messages.get(2)));
+		assertTrue(Arrays.equals(large, binaryOf(messages.get(3))));
+		assertTrue(messages.get(4) instanceof WebSocketMessage.ConnectionLost);
+	}
+
+
+	/**
+	 * Option variants for the ways text messages are received: decoded to
+	 * a String, raw, and raw into a pooled buffer.
+	 */
+	private static List<WebSocketOptions> textOptions() {
+		List<WebSocketOptions> variants = new ArrayList<WebSocketOptions>();
+		variants.add(new WebSocketOptions());
+
+		WebSocketOptions raw = new WebSocketOptions();
+		raw.setReceiveTextMessagesRaw(true);
+		variants.add(raw);
+
+		WebSocketOptions pooled = new WebSocketOptions(raw);
+		pooled.setPayloadBufferPool(new PayloadBufferPool());
+		variants.add(pooled);
+		return variants;
+	}
+
+
+	/**
+	 * Receive frames following a successful handshake, and get what the
+	 * reader has posted, batches flattened.
+	 */
+	private List<Object> receive(WebSocketOptions options, int chunking, byte[]... frames) throws Exception {
+		List<Object> messages = flatten(receiveRaw(options, chunking, concat(HANDSHAKE.getBytes("UTF-8"), concat(frames))));
+		assertTrue(messages.get(0) instanceof WebSocketMessage.ServerHandshake);
+		return messages;
+	}
+
+
+	/**
+	 * Receive the given octets, served in chunks, and get what the reader
+	 * has posted until the end of the input.
+	 */
+	private List<Object> receiveRaw(WebSocketOptions options, int chunking, byte[] response) throws Exception {
+		final InputStream input = new ChunkedInputStream(response, chunking);
+		Socket socket = new Socket() {
+			@Override
+			public InputStream getInputStream() {
+				return input;
+			}
+		};
+		return run(options, socket);
+	}
+
+
+	/**
+	 * Run a reader on this thread until it stops, and get what it has posted.
+	 */
+	private List<Object> run(WebSocketOptions options, Socket socket) {
+		final List<Object> posted = new ArrayList<Object>();
+		Handler master = new Handler(Looper.getMainLooper()) {
+			@Override
+			public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+				posted.add(msg.obj);
+				return true;
+			}
+		};
+
+		mReader = new WebSocketReader(master, socket, options, "WebSocketReaderTest");
+		mReader.run();
+		return posted;
+	}
+
+
+	private static List<Object> flatten(List<Object> posted) {
+		List<Object> messages = new ArrayList<Object>();
+		for (Object message : posted) {
+			if (message instanceof WebSocketMessage.MessageBatch) {
+				messages.addAll(((WebSocketMessage.MessageBatch) message).mMessages);
+			} else {
+				messages.add(message);
+			}
+		}
+		return messages;
+	}
+
+
+	/**
+	 * Check that a protocol violation was posted, and no text message.
+	 */
+	private static void assertViolation(List<Object> messages) throws Exception {
+		boolean violation = false;
+		for (Object message : messages) {
+			if (message instanceof WebSocketMessage.ProtocolViolation) {
+				violation = true;
+			} else if (message instanceof WebSocketMessage.TextFragment) {
+				assertFalse("text completed", ((WebSocketMessage.TextFragment) message).mLast);
+			} else {
+				assertTrue("text delivered", textOf(message) == null);
+			}
+		}
+		assertTrue("no protocol violation", violation);
+	}
+
+
+	/**
+	 * Get payload of a received text message, or null for other messages.
+	 */
+	private static String textOf(Object message) throws Exception {
+		if (message instanceof WebSocketMessage.TextMessage) {
+			String payload = ((WebSocketMessage.TextMessage) message).mPayload;
+			return payload != null ? payload : "";
+		} else if (message instanceof WebSocketMessage.RawTextMessage) {
+			byte[] payload = ((WebSocketMessage.RawTextMessage) message).mPayload;
+			return payload != null ? new String(payload, "UTF-8") : "";
+		} else if (message instanceof WebSocketMessage.PooledRawTextMessage) {
+			PayloadBuffer payload = ((WebSocketMessage.PooledRawTextMessage) message).mPayload;
+			String text = new String(payload.getArray(), 0, payload.getLength(), "UTF-8");
+			payload.release();
+			return text;
+		}
+		return null;
+	}
+
+
+	/**
+	 * Get payload of a received binary message.
+	 */
+	private static byte[] binaryOf(Object message) {
+		if (message instanceof WebSocketMessage.PooledBinaryMessage) {
+			PayloadBuffer payload = ((WebSocketMessage.PooledBinaryMessage) message).mPayload;
+			byte[] copy = Arrays.copyOf(payload.getArray(), payload.getLength());
+			payload.release();
+			return copy;
+		}
+		byte[] payload = ((WebSocketMessage.BinaryMessage) message).mPayload;
+		return payload != null ? payload : new byte[0];
+	}
+
+
+	/**
+	 * Build an unmasked server frame.
+	 */
+	private static byte[] frame(int opcode, boolean fin, byte[] payload) {
+		ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		frame.write((fin ? 0x80 : 0) | opcode);
+		if (payload.length < 126) {
+			frame.write(payload.length);
+		} else if (payload.length < 65536) {
+			frame.write(126);
+			frame.write(payload.length >> 8);
+			frame.write(payload.length);
+		} else {
+			frame.write(127);
+			for (int shift = 56; shift >= 0; shift -= 8) {
+				frame.write((int) ((long) payload.length >> shift));
+			}
+		}
+		frame.write(payload, 0, payload.length);
+		return frame.toByteArray();
+	}
+
+
+	private static byte[] concat(byte[]... parts) {
+		ByteArrayOutputStream all = new ByteArrayOutputStream();
+		for (byte[] part : parts) {
+			all.write(part, 0, part.length);
+		}
+		return all.toByteArray();
+	}
+
+
+	private static byte[] randomPayload(int length) {
+		byte[] payload = new byte[length];
+		new Random(length).nextBytes(payload);
+		return payload;
+	}
+}
@@ -0,0 +1,455 @@
+/******************************************************************************
+ *
+ *  Copyright 2011-2012 Tavendo GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package de.tavendo.autobahn;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+
+/**
+ * Tests for WebSocketWriter, run against a socket whose output is captured
+ * and parsed back into frames.
+ */
+public class WebSocketWriterTest extends TestCase {
+
+	/// Frame as parsed from the writer output, payload unmasked.
+	private static class Frame {
+		int mOpcode;
+		boolean mFin;
+		boolean mMasked;
+		byte[] mPayload;
+
+		@Override
+		public String toString() {
+			return "[op=" + mOpcode + " fin=" + mFin + " len=" + mPayload.length + "]";
+		}
+	}
+
+	private final ByteArrayOutputStream mOutput = new ByteArrayOutputStream();
+	private final List<Object> mNotified = new ArrayList<Object>();
+	private Socket mSocket;
+	private Handler mMaster;
+	private WebSocketWriter mWriter;
+	private File mFile;
+
+
+	@Override
+	protected void setUp() throws Exception {
+		final OutputStream output = new OutputStream() {
+			@Override
+			public void write(int b) {
+				mOutput.write(b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				mOutput.write(b, off, len);
+			}
+		};
+		mSocket = new Socket() {
+			@Override
+			public OutputStream getOutputStream() {
+				return output;
+			}
+		};
+
+		// record what the writer tells the master, on the writer thread
+		mMaster = new Handler(Looper.getMainLooper()) {
+			@Override
+			public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+				synchronized (mNotified) {
+					mNotified.add(msg.obj);
+				}
+				return true;
+			}
+		};
+
+		mWriter = new WebSocketWriter(mMaster, mSocket, new WebSocketOptions(), "WebSocketWriterTest");
+		mWriter.start();
+	}
+
+
+	/**
+	 * Replace the writer started by setUp() with one using other options,
+	 * not started yet.
+	 */
+	private void replaceWriter(WebSocketOptions options) throws Exception {
+		mWriter.forward(new WebSocketMessage.Quit());
+		mWriter.join(5000);
+		mWriter = new WebSocketWriter(mMaster, mSocket, options, "WebSocketWriterTest");
+	}
+
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (mWriter.isAlive()) {
+			mWriter.forward(new WebSocketMessage.Quit());
+			mWriter.join(5000);
+		}
+		if (mFile != null) {
+			mFile.delete();
+		}
+	}
+
+
+	/**
+	 * A message held back behind a file is sent once the file is complete,
+	 * even when the last file fragment has filled the batch.
+	 */
+	public void testLargeMessageBehindFile() throws Exception {
+		byte[] file = randomPayload(200000);
+		byte[] binary = randomPayload(131000);
+
+		List<Frame> frames = send(fileMessage(file), new WebSocketMessage.BinaryMessage(binary));
+
+		assertNoErrors();
+		List<byte[]> messages = messages(frames);
+		assertEquals(2, messages.size());
+		assertTrue(Arrays.equals(file, messages.get(0)));
+		assertTrue(Arrays.equals(binary, messages.get(1)));
+	}
+
+
+	/**
+	 * A close forwarded while a file is sent goes out after the file's last
+	 * fragment, as no data frame may follow a close.
+	 */
+	public void testCloseHeldBackBehindFile() throws Exception {
+		byte[] file = randomPayload(300000);
+
+		List<Frame> frames = send(fileMessage(file), new WebSocketMessage.Close(1000));
+
+		assertNoErrors();
+		assertEquals(8, frames.get(frames.size() - 1).mOpcode);
+		List<byte[]> messages = messages(frames.subList(0, frames.size() - 1));
+		assertEquals(1, messages.size());
+		assertTrue(Arrays.equals(file, messages.get(0)));
+	}
+
+
+	/**
+	 * Only one message stream is open at a time, and a close forwarded
+	 * meanwhile goes out once the stream has been closed.
+	 */
+	public void testCloseHeldBackBehindStream() throws Exception {
+		byte[] payload = randomPayload(2500);
+
+		assertTrue(mWriter.openStream());
+		WebSocketMessageOutputStream stream = new WebSocketMessageOutputStream(mWriter, false, 1000);
+		assertFalse("second stream opened", mWriter.openStream());
+
+		stream.write(payload, 0, 1200);
+		CountDownLatch closed = forwardTracked(new WebSocketMessage.Close(1000));
+		stream.write(payload, 1200, 1300);
+		stream.close();
+		assertTrue("stream not released", mWriter.openStream());
+		List<Frame> frames = finish(closed);
+
+		assertNoErrors();
+		assertEquals(8, frames.get(frames.size() - 1).mOpcode);
+		List<byte[]> messages = messages(frames.subList(0, frames.size() - 1));
+		assertEquals(1, messages.size());
+		assertTrue(Arrays.equals(payload, messages.get(0)));
+	}
+
+
+	/**
+	 * A send from a send callback, i.e. on the writer thread, is queued
+	 * even when the send buffer is full and senders block.
+	 */
+	public void testPutFromCallbackWhenBufferFull() throws Exception {
+		WebSocketOptions options = new WebSocketOptions();
+		options.setSendHighWatermarkBytes(1000);
+		options.setSendLowWatermarkBytes(500);
+		options.setBlockWhenSendBufferFull(true);
+		replaceWriter(options);
+		mWriter.start();
+
+		final byte[] payload = randomPayload(800);
+		final CountDownLatch done = new CountDownLatch(1);
+		final WebSocket.WebSocketSendCallback last = new WebSocket.WebSocketSendCallback() {
+			@Override
+			public void onSent() {
+				done.countDown();
+			}
+
+			@Override
+			public void onSendFailed(Exception e) {
+			}
+		};
+		mWriter.forward(new WebSocketMessage.TrackedMessage(new WebSocketMessage.BinaryMessage(payload), new WebSocket.WebSocketSendCallback() {
+			@Override
+			public void onSent() {
+				// fill the send buffer, as the writer is busy here
+				mWriter.forward(new WebSocketMessage.BinaryMessage(payload));
+				mWriter.put(new WebSocketMessage.TrackedMessage(new WebSocketMessage.BinaryMessage(payload), last), false);
+			}
+
+			@Override
+			public void onSendFailed(Exception e) {
+			}
+		}));
+		List<Frame> frames = finish(done);
+
+		assertNoErrors();
+		assertEquals(3, messages(frames).size());
+	}
+
+
+	/**
+	 * Text is accounted in the send buffer by its UTF-8 length.
+	 */
+	public void testSendBufferCountsUtf8Octets() throws Exception {
+		WebSocketOptions options = new WebSocketOptions();
+		options.setSendHighWatermarkBytes(1000);
+		replaceWriter(options);
+
+		String text = "gr\u00fc\u00dfe \ud83d\ude00 \u20ac \ud800!";
+		mWriter.forward(new WebSocketMessage.TextMessage(text));
+		assertEquals(text.getBytes("UTF-8").length, mWriter.getSendBufferBytes());
+	}
+
+
+	/**
+	 * The buffer of a buffer message still queued when the writer quits is
+	 * handed back as well.
+	 */
+	public void testDroppedBufferIsReleased() throws Exception {
+		replaceWriter(new WebSocketOptions());
+
+		final List<ByteBuffer> released = new ArrayList<ByteBuffer>();
+		ByteBuffer payload = ByteBuffer.wrap(randomPayload(100));
+		mWriter.forward(new WebSocketMessage.Quit());
+		mWriter.forward(new WebSocketMessage.ByteBufferMessage(payload, false, new WebSocket.WebSocketPayloadReleaseCallback() {
+			@Override
+			public void onPayloadReleased(ByteBuffer buffer) {
+				released.add(buffer);
+			}
+		}));
+		mWriter.start();
+		mWriter.join(5000);
+
+		assertEquals(1, released.size());
+		assertTrue(payload == released.get(0));
+	}
+
+
+	/**
+	 * The channel of a file message still queued when the writer quits is
+	 * closed, as the writer owns it.
+	 */
+	public void testDroppedFileIsClosed() throws Exception {
+		replaceWriter(new WebSocketOptions());
+
+		WebSocketMessage.FileMessage file = fileMessage(randomPayload(100));
+		mWriter.forward(new WebSocketMessage.Quit());
+		mWriter.forward(file);
+		mWriter.start();
+		mWriter.join(5000);
+
+		assertFalse(file.mChannel.isOpen());
+	}
+
+
+	/**
+	 * Masking works on the copy in the output buffer: the caller's array is
+	 * unchanged, also when sent twice and in fragments starting at offsets
+	 * that are no multiple of 8.
+	 */
+	public void testMaskingLeavesPayloadUntouched() throws Exception {
+		WebSocketOptions options = new WebSocketOptions();
+		options.setOutgoingFragmentSize(13);
+		replaceWriter(options);
+		mWriter.start();
+
+		byte[] payload = randomPayload(1001);
+		byte[] original = payload.clone();
+		byte[] ping = randomPayload(21);
+		byte[] originalPing = ping.clone();
+		ByteBuffer slice = ByteBuffer.wrap(payload, 3, 500);
+
+		List<Frame> frames = send(
+				new WebSocketMessage.BinaryMessage(payload),
+				new WebSocketMessage.Ping(ping),
+				new WebSocketMessage.BinaryMessage(payload),
+				new WebSocketMessage.ByteBufferMessage(slice, false, null));
+
+		assertNoErrors();
+		assertTrue("payload changed", Arrays.equals(original, payload));
+		assertTrue("ping payload changed", Arrays.equals(originalPing, ping));
+		for (Frame frame : frames) {
+			assertTrue(frame.toString(), frame.mMasked);
+			if (frame.mOpcode == 9) {
+				assertTrue(Arrays.equals(originalPing, frame.mPayload));
+			}
+		}
+		List<byte[]> messages = messages(frames);
+		assertEquals(3, messages.size());
+		assertTrue(Arrays.equals(original, messages.get(0)));
+		assertTrue(Arrays.equals(original, messages.get(1)));
+		assertTrue(Arrays.equals(Arrays.copyOfRange(original, 3, 503), messages.get(2)));
+	}
+
+
+	private byte[] randomPayload(int length) {
+		byte[] payload = new byte[length];
+		new Random(length).nextBytes(payload);
+		return payload;
+	}
+
+
+	private WebSocketMessage.FileMessage fileMessage(byte[] content) throws Exception {
+		mFile = File.createTempFile("wstest", ".bin");
+		FileOutputStream out = new FileOutputStream(mFile);
+		try {
+			out.write(content);
+		} finally {
+			out.close();
+		}
+		return new WebSocketMessage.FileMessage(new FileInputStream(mFile).getChannel(), 0, content.length);
+	}
+
+
+	/**
+	 * Forward messages, stop the writer once the last one has been written,
+	 * and parse what it has written.
+	 */
+	private List<Frame> send(Object... messages) throws Exception {
+		for (int i = 0; i < messages.length - 1; ++i) {
+			mWriter.forward(messages[i]);
+		}
+		return finish(forwardTracked(messages[messages.length - 1]));
+	}
+
+
+	/**
+	 * Forward a message, to be told once it has been written.
+	 */
+	private CountDownLatch forwardTracked(Object message) {
+		final CountDownLatch done = new CountDownLatch(1);
+		mWriter.forward(new WebSocketMessage.TrackedMessage(message, new WebSocket.WebSocketSendCallback() {
+			@Override
+			public void onSent() {
+				done.countDown();
+			}
+
+			@Override
+			public void onSendFailed(Exception e) {
+				done.countDown();
+			}
+		}));
+		return done;
+	}
+
+
+	/**
+	 * Stop the writer once a tracked message has been written, and parse
+	 * what it has written.
+	 */
+	private List<Frame> finish(CountDownLatch done) throws Exception {
+		assertTrue("last message not written", done.await(5, TimeUnit.SECONDS));
+
+		mWriter.forward(new WebSocketMessage.Quit());
+		mWriter.join(5000);
+		assertFalse("writer did not quit", mWriter.isAlive());
+
+		ByteBuffer output = ByteBuffer.wrap(mOutput.toByteArray());
+		List<Frame> frames = new ArrayList<Frame>();
+		while (output.hasRemaining()) {
+			Frame frame = new Frame();
+			int b0 = output.get() & 0xff;
+			int b1 = output.get() & 0xff;
+			frame.mFin = (b0 & 0x80) != 0;
+			frame.mOpcode = b0 & 0x0f;
+
+			long length = b1 & 0x7f;
+			if (length == 126) {
+				length = output.getShort() & 0xffff;
+			} else if (length == 127) {
+				length = output.getLong();
+			}
+
+			byte[] mask = new byte[4];
+			frame.mMasked = (b1 & 0x80) != 0;
+			if (frame.mMasked) {
+				output.get(mask);
+			}
+			frame.mPayload = new byte[(int) length];
+			output.get(frame.mPayload);
+			for (int i = 0; i < frame.mPayload.length; ++i) {
+				frame.mPayload[i] ^= mask[i % 4];
+			}
+			frames.add(frame);
+		}
+		return frames;
+	}
+
+
+	/**
+	 * Reassemble the data messages from frames, checking their framing.
+	 */
+	private static List<byte[]> messages(List<Frame> frames) {
+		List<byte[]> messages = new ArrayList<byte[]>();
+		ByteArrayOutputStream message = null;
+		for (Frame frame : frames) {
+			if (frame.mOpcode >= 8) {
+				continue;
+			}
+			if (frame.mOpcode == 0) {
+				assertTrue("continuation without message", message != null);
+			} else {
+				assertTrue("data frame within message", message == null);
+				message = new ByteArrayOutputStream();
+			}
+			message.write(frame.mPayload, 0, frame.mPayload.length);
+			if (frame.mFin) {
+				messages.add(message.toByteArray());
+				message = null;
+			}
+		}
+		assertTrue("message not completed", message == null);
+		return messages;
+	}
+
+
+	private void assertNoErrors() {
+		synchronized (mNotified) {
+			for (Object msg : mNotified) {
+				if (msg instanceof WebSocketMessage.Error) {
+					fail("writer error: " + ((WebSocketMessage.Error) msg).mException);
+				}
+			}
+		}
+	}
+}
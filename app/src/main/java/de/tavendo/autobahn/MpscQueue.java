@@ -0,0 +1,89 @@
+/******************************************************************************
+ *
+ *  Copyright 2011-2012 Tavendo GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package de.tavendo.autobahn;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Unbounded lock-free multi-producer single-consumer queue (after Dmitry
+ * Vyukov's intrusive MPSC node queue). Producers enqueue with a single atomic
+ * swap of the tail and never retry, the single consumer dequeues without any
+ * atomic operation.
+ *
+ * An element offered is visible to poll() once its producer has linked it,
+ * which happens right after the swap. A consumer finding the queue empty may
+ * thus miss an element being offered concurrently, the producer must signal
+ * the consumer after offer() returns.
+ */
+class MpscQueue<E> {
+
+	private static final class Node<E> {
+		E mValue;
+		volatile Node<E> mNext;
+
+		Node(E value) {
+			mValue = value;
+		}
+	}
+
+	private final AtomicReference<Node<E>> mTail;
+	private Node<E> mHead;
+
+	MpscQueue() {
+		Node<E> stub = new Node<E>(null);
+		mHead = stub;
+		mTail = new AtomicReference<Node<E>>(stub);
+	}
+
+	/**
+	 * Add an element (any thread).
+	 *
+	 * @param value      Element, not null.
+	 */
+	void offer(E value) {
+		Node<E> node = new Node<E>(value);
+		Node<E> previous = mTail.getAndSet(node);
+		previous.mNext = node;
+	}
+
+	/**
+	 * Remove the oldest element (consumer thread only).
+	 *
+	 * @return           Element, or null when empty.
+	 */
+	E poll() {
+		Node<E> next = mHead.mNext;
+		if (next == null) {
+			return null;
+		}
+		E value = next.mValue;
+		next.mValue = null;
+		mHead = next;
+		return value;
+	}
+
+	/**
+	 * Check for elements (consumer thread only).
+	 *
+	 * @return           True, iff no element is available.
+	 */
+	boolean isEmpty() {
+		return mHead.mNext == null;
+	}
+}
@@ -0,0 +1,127 @@
+/******************************************************************************
+ *
+ *  Copyright 2011-2012 Tavendo GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package de.tavendo.autobahn;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reference counted message payload, backed by a byte array owned by a
+ * PayloadBufferPool. The payload occupies the first getLength() octets
+ * of getArray(). Whoever holds a reference must call release() once done
+ * with it, after which the array is handed out again by the pool and
+ * must no longer be accessed.
+ */
+public class PayloadBuffer {
+
+	private final PayloadBufferPool mPool;
+	private final int mSizeClass;
+	private final byte[] mArray;
+	private int mLength;
+	private final AtomicInteger mReferenceCount;
+
+	/**
+	 * Create new payload buffer. Only the pool creates payload buffers.
+	 *
+	 * @param pool       Pool the buffer is returned to on final release.
+	 * @param sizeClass  Size class within pool, or -1 when not pooled.
+	 * @param capacity   Size of the underlying byte array.
+	 */
+	PayloadBuffer(PayloadBufferPool pool, int sizeClass, int capacity) {
+		mPool = pool;
+		mSizeClass = sizeClass;
+		mArray = new byte[capacity];
+		mLength = 0;
+		mReferenceCount = new AtomicInteger(0);
+	}
+
+	/**
+	 * Get byte array underlying this payload. This does not copy
+	 * any data. The array may be larger than the payload.
+	 *
+	 * @return     Underlying byte array by reference.
+	 */
+	public byte[] getArray() {
+		return mArray;
+	}
+
+	/**
+	 * Get length of payload within the underlying byte array.
+	 *
+	 * @return     Payload length in octets.
+	 */
+	public int getLength() {
+		return mLength;
+	}
+
+	/**
+	 * Copy the payload into a new byte array of exact size.
+	 *
+	 * @return     Copy of payload.
+	 */
+	public byte[] toByteArray() {
+		byte[] copy = new byte[mLength];
+		System.arraycopy(mArray, 0, copy, 0, mLength);
+		return copy;
+	}
+
+	/**
+	 * Add a reference, i.e. when handing the payload on to another thread.
+	 * Every call must be balanced by a call to release().
+	 *
+	 * @return     This payload buffer.
+	 */
+	public PayloadBuffer retain() {
+		if (mReferenceCount.getAndIncrement() <= 0) {
+			mReferenceCount.decrementAndGet();
+			throw new IllegalStateException("payload buffer already released");
+		}
+		return this;
+	}
+
+	/**
+	 * Drop a reference. When the last reference is dropped, the
+	 * buffer goes back to its pool.
+	 */
+	public void release() {
+		int count = mReferenceCount.decrementAndGet();
+		if (count == 0) {
+			mPool.recycle(this);
+		} else if (count < 0) {
+			mReferenceCount.incrementAndGet();
+			throw new IllegalStateException("payload buffer released too often");
+		}
+	}
+
+	int getSizeClass() {
+		return mSizeClass;
+	}
+
+	int getCapacity() {
+		return mArray.length;
+	}
+
+	void setLength(int length) {
+		mLength = length;
+	}
+
+	void acquired() {
+		mLength = 0;
+		mReferenceCount.set(1);
+	}
+}
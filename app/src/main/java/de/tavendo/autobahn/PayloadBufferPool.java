@@ -0,0 +1,151 @@
+/******************************************************************************
+ *
+ *  Copyright 2011-2012 Tavendo GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package de.tavendo.autobahn;
+
+/**
+ * Size-classed pool of PayloadBuffer objects for received messages. Size
+ * classes are powers of two, starting at 64 octets. Each class keeps a
+ * bounded number of released buffers for reuse, so that steady-state
+ * receiving does not allocate payload arrays. Payloads larger than the
+ * largest size class are allocated exactly and never retained.
+ *
+ * A pool is thread-safe and may be shared by several connections (see
+ * WebSocketOptions.setPayloadBufferPool()).
+ */
+public class PayloadBufferPool {
+
+	private static final int MIN_SIZE_SHIFT = 6;
+
+	private final PayloadBuffer[][] mFreeBuffers;
+	private final int[] mFreeCounts;
+	private final int mMaxPooledSize;
+
+	private long mHits;
+	private long mMisses;
+
+	/**
+	 * Create pool retaining up to 16 buffers of each size class,
+	 * for payloads up to 1MB.
+	 */
+	public PayloadBufferPool() {
+		this(16, 1024 * 1024);
+	}
+
+	/**
+	 * Create pool.
+	 *
+	 * @param maxBuffersPerSizeClass   Maximum number of released buffers kept per size class.
+	 * @param maxPooledSize            Largest payload size (in octets) served from the pool.
+	 */
+	public PayloadBufferPool(int maxBuffersPerSizeClass, int maxPooledSize) {
+		int sizeClasses = sizeClassOf(Math.min(Math.max(maxPooledSize, 1), 1 << 30)) + 1;
+
+		mFreeBuffers = new PayloadBuffer[sizeClasses][maxBuffersPerSizeClass];
+		mFreeCounts = new int[sizeClasses];
+		mMaxPooledSize = (1 << MIN_SIZE_SHIFT) << (sizeClasses - 1);
+	}
+
+	/**
+	 * Get a payload buffer with room for at least size octets. The buffer
+	 * is returned with a reference count of one and a length of zero.
+	 *
+	 * @param size       Minimum capacity in octets.
+	 * @return           Payload buffer.
+	 */
+	public PayloadBuffer acquire(int size) {
+		PayloadBuffer buffer = null;
+
+		if (size > mMaxPooledSize) {
+			synchronized (this) {
+				++mMisses;
+			}
+			buffer = new PayloadBuffer(this, -1, size);
+		} else {
+			int sizeClass = sizeClassOf(size);
+			synchronized (this) {
+				int count = mFreeCounts[sizeClass];
+				if (count > 0) {
+					buffer = mFreeBuffers[sizeClass][count - 1];
+					mFreeBuffers[sizeClass][count - 1] = null;
+					mFreeCounts[sizeClass] = count - 1;
+					++mHits;
+				} else {
+					++mMisses;
+				}
+			}
+			if (buffer == null) {
+				buffer = new PayloadBuffer(this, sizeClass, (1 << MIN_SIZE_SHIFT) << sizeClass);
+			}
+		}
+
+		buffer.acquired();
+		return buffer;
+	}
+
+	/**
+	 * Take back a buffer whose last reference has been released.
+	 */
+	void recycle(PayloadBuffer buffer) {
+		int sizeClass = buffer.getSizeClass();
+		if (sizeClass < 0) {
+			return;
+		}
+
+		synchronized (this) {
+			int count = mFreeCounts[sizeClass];
+			if (count < mFreeBuffers[sizeClass].length) {
+				mFreeBuffers[sizeClass][count] = buffer;
+				mFreeCounts[sizeClass] = count + 1;
+			}
+		}
+	}
+
+	/**
+	 * Get number of acquire() calls served by a released buffer.
+	 *
+	 * @return           Pool hits.
+	 */
+	public synchronized long getHitCount() {
+		return mHits;
+	}
+
+	/**
+	 * Get number of acquire() calls that had to allocate a new buffer.
+	 *
+	 * @return           Pool misses.
+	 */
+	public synchronized long getMissCount() {
+		return mMisses;
+	}
+
+	/**
+	 * Reset hit and miss counters.
+	 */
+	public synchronized void resetStatistics() {
+		mHits = 0;
+		mMisses = 0;
+	}
+
+	private static int sizeClassOf(int size) {
+		if (size <= (1 << MIN_SIZE_SHIFT)) {
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SIZE_SHIFT;
+	}
+}
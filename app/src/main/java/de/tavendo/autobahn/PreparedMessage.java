@@ -0,0 +1,122 @@
+/******************************************************************************
+ *
+ *  Copyright 2011-2012 Tavendo GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package de.tavendo.autobahn;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * WebSockets message encoded once, for sending the same payload repeatedly
+ * or to many connections. The payload is encoded and the frame header is
+ * built at construction, so a send only copies them to the output, plus
+ * masking the copy when client frames are masked. A prepared message is
+ * immutable and may be shared between threads and connections.
+ *
+ * Payloads larger than a connection's outgoing fragment size are sent
+ * fragmented, using the encoded payload but headers built per send.
+ */
+public class PreparedMessage {
+
+	private final boolean mText;
+	private final byte[] mPayload;
+	private final byte[] mHeader;
+	private final byte[] mMaskedHeader;
+
+	/**
+	 * Prepare text message.
+	 *
+	 * @param payload    Text message payload.
+	 */
+	public PreparedMessage(String payload) {
+		this(encode(payload), true);
+	}
+
+	/**
+	 * Prepare raw (UTF-8) text or binary message. The payload
+	 * is referenced, so must not be modified afterwards.
+	 *
+	 * @param payload    Message payload.
+	 * @param text       True for a text message, false for binary.
+	 */
+	public PreparedMessage(byte[] payload, boolean text) {
+		mText = text;
+		mPayload = payload != null ? payload : new byte[0];
+		mHeader = buildHeader(text ? 1 : 2, mPayload.length, false);
+		mMaskedHeader = buildHeader(text ? 1 : 2, mPayload.length, true);
+	}
+
+	/**
+	 * Check whether this is a text message.
+	 *
+	 * @return     True for text, false for binary.
+	 */
+	public boolean isText() {
+		return mText;
+	}
+
+	/**
+	 * Get encoded message payload, by reference.
+	 *
+	 * @return     Payload octets, must not be modified.
+	 */
+	public byte[] getPayload() {
+		return mPayload;
+	}
+
+	/**
+	 * Get frame header for sending the message as a single frame, without
+	 * the masking key, which follows the header in masked frames.
+	 *
+	 * @param masked     True, iff the frame is masked.
+	 * @return           Header octets, must not be modified.
+	 */
+	byte[] getHeader(boolean masked) {
+		return masked ? mMaskedHeader : mHeader;
+	}
+
+	private static byte[] encode(String payload) {
+		try {
+			return payload.getBytes(WebSocket.UTF8_ENCODING);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static byte[] buildHeader(int opcode, int length, boolean masked) {
+		byte b1 = masked ? (byte) 0x80 : 0;
+
+		byte[] header;
+		if (length <= 125) {
+			header = new byte[2];
+			header[1] = (byte) (b1 | length);
+		} else if (length <= 0xffff) {
+			header = new byte[4];
+			header[1] = (byte) (b1 | 126);
+			header[2] = (byte) (length >> 8);
+			header[3] = (byte) length;
+		} else {
+			header = new byte[10];
+			header[1] = (byte) (b1 | 127);
+			for (int i = 0; i < 4; ++i) {
+				header[6 + i] = (byte) (length >> (24 - 8 * i));
+			}
+		}
+		header[0] = (byte) (0x80 | opcode);
+		return header;
+	}
+}
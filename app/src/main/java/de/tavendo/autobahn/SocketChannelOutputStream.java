@@ -0,0 +1,91 @@
+/******************************************************************************
+ *
+ *  Copyright 2011-2012 Tavendo GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package de.tavendo.autobahn;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Blocking OutputStream on a non-blocking socket channel, as used by the
+ * writer of connections served by a WebSocketReaderPool (the socket's own
+ * stream refuses to work in non-blocking mode). When the channel does not
+ * take all data, the stream waits for it to become writable on a selector
+ * of its own.
+ */
+class SocketChannelOutputStream extends OutputStream {
+
+	private final SocketChannel mChannel;
+	private Selector mSelector;
+
+	SocketChannelOutputStream(SocketChannel channel) {
+		mChannel = channel;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] {(byte) b}, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		write(ByteBuffer.wrap(b, off, len));
+	}
+
+	/**
+	 * Write all remaining octets of a buffer.
+	 *
+	 * @param buffer     Buffer to write.
+	 */
+	public void write(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (mChannel.write(buffer) == 0) {
+				awaitWritable();
+			}
+		}
+	}
+
+	private void awaitWritable() throws IOException {
+		if (mSelector == null) {
+			mSelector = Selector.open();
+			mChannel.register(mSelector, SelectionKey.OP_WRITE);
+		}
+		mSelector.select();
+		mSelector.selectedKeys().clear();
+	}
+
+	/**
+	 * Release the selector used for waiting, leaving the channel open.
+	 */
+	void release() throws IOException {
+		if (mSelector != null) {
+			mSelector.close();
+			mSelector = null;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		release();
+		mChannel.close();
+	}
+}
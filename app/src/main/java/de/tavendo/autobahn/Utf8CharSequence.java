@@ -0,0 +1,176 @@
+/******************************************************************************
+ *
+ *  Copyright 2011-2012 Tavendo GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package de.tavendo.autobahn;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Text message payload as a CharSequence view on its UTF-8 octets. Nothing
+ * is decoded up front: the octets can be forwarded as they are, pure ASCII
+ * text is accessed character by character directly from the octets, and
+ * anything else is decoded once on first access and cached.
+ */
+public class Utf8CharSequence implements CharSequence {
+
+   private static final int UNKNOWN = 0;
+   private static final int ASCII = 1;
+   private static final int NON_ASCII = 2;
+
+   private final byte[] mBytes;
+   private final int mOffset;
+   private final int mByteLength;
+
+   private int mKind;
+   private String mString;
+
+   /**
+    * Wrap UTF-8 octets, without copying.
+    *
+    * @param bytes      Buffer holding the UTF-8 octets.
+    */
+   public Utf8CharSequence(byte[] bytes) {
+      this(bytes, 0, bytes.length);
+   }
+
+   /**
+    * Wrap UTF-8 octets, without copying. The octets must not be
+    * modified while the sequence is in use.
+    *
+    * @param bytes      Buffer holding the UTF-8 octets.
+    * @param offset     Offset of first octet within buffer.
+    * @param length     Number of octets.
+    */
+   public Utf8CharSequence(byte[] bytes, int offset, int length) {
+      if (offset < 0 || length < 0 || offset + length > bytes.length) {
+         throw new IndexOutOfBoundsException();
+      }
+      mBytes = bytes;
+      mOffset = offset;
+      mByteLength = length;
+      mKind = UNKNOWN;
+      mString = null;
+   }
+
+   /**
+    * Get buffer holding the UTF-8 octets, by reference.
+    *
+    * @return     Underlying byte array.
+    */
+   public byte[] getArray() {
+      return mBytes;
+   }
+
+   /**
+    * Get offset of the first UTF-8 octet within getArray().
+    *
+    * @return     Offset in octets.
+    */
+   public int getOffset() {
+      return mOffset;
+   }
+
+   /**
+    * Get number of UTF-8 octets.
+    *
+    * @return     Length in octets.
+    */
+   public int getByteLength() {
+      return mByteLength;
+   }
+
+   /**
+    * Write the UTF-8 octets to a stream, without decoding.
+    *
+    * @param out        Stream to write to.
+    */
+   public void writeTo(OutputStream out) throws IOException {
+      out.write(mBytes, mOffset, mByteLength);
+   }
+
+   /**
+    * Check whether the text is pure ASCII, in which case character
+    * access never needs decoding.
+    *
+    * @return     True, iff all octets are ASCII.
+    */
+   public boolean isAscii() {
+      if (mKind == UNKNOWN) {
+         mKind = ASCII;
+         for (int i = mOffset; i < mOffset + mByteLength; ++i) {
+            if (mBytes[i] < 0) {
+               mKind = NON_ASCII;
+               break;
+            }
+         }
+      }
+      return mKind == ASCII;
+   }
+
+   @Override
+   public int length() {
+      if (mString == null && isAscii()) {
+         return mByteLength;
+      }
+      return toString().length();
+   }
+
+   @Override
+   public char charAt(int index) {
+      if (mString == null && isAscii()) {
+         if (index < 0 || index >= mByteLength) {
+            throw new IndexOutOfBoundsException();
+         }
+         return (char) mBytes[mOffset + index];
+      }
+      return toString().charAt(index);
+   }
+
+   @Override
+   public CharSequence subSequence(int start, int end) {
+      if (mString == null && isAscii()) {
+         if (start < 0 || end > mByteLength || start > end) {
+            throw new IndexOutOfBoundsException();
+         }
+         Utf8CharSequence sub = new Utf8CharSequence(mBytes, mOffset + start, end - start);
+         sub.mKind = ASCII;
+         return sub;
+      }
+      return toString().subSequence(start, end);
+   }
+
+   /**
+    * Decode the text. The result is cached, so only the first
+    * call decodes.
+    *
+    * @return     Decoded text.
+    */
+   @Override
+   public String toString() {
+      if (mString == null) {
+         try {
+            mString = new String(mBytes, mOffset, mByteLength, WebSocket.UTF8_ENCODING);
+         } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+         }
+      }
+      return mString;
+   }
+}
@@ -0,0 +1,229 @@
+/******************************************************************************
+ *
+ *  Copyright 2011-2012 Tavendo GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *  Implements the algorithm "Flexible and Economical UTF-8 Decoder" by
+ *  Bjoern Hoehrmann (http://bjoern.hoehrmann.de/utf-8/decoder/dfa/).
+ *
+ ******************************************************************************/
+
+package de.tavendo.autobahn;
+
+import java.nio.ByteBuffer;
+
+/**
+ *  Incremental validating UTF-8 decoder. Validation and decoding happen in
+ *  a single pass using the same DFA as Utf8Validator, decoded characters are
+ *  appended to a reusable char array. A message may be fed in chunks (i.e.
+ *  frame by frame), chunk boundaries may fall within encoded code points.
+ *
+ *  Implements the algorithm "Flexible and Economical UTF-8 Decoder" by
+ *  Bjoern Hoehrmann (http://bjoern.hoehrmann.de/utf-8/decoder/dfa/).
+ */
+public class Utf8Decoder {
+
+   private static final int ACCEPT = 0;
+   private static final int REJECT = 1;
+
+   private int mState;
+   private int mCodePoint;
+   private int mPos;
+
+   private char[] mChars;
+   private int mLength;
+
+   /**
+    * Create new incremental UTF-8 decoder. The decoder is already
+    * resetted and thus immediately usable.
+    *
+    * @param initialCapacity    Initial size of character buffer.
+    */
+   public Utf8Decoder(int initialCapacity) {
+      mChars = new char[Math.max(initialCapacity, 16)];
+      reset();
+   }
+
+   /**
+    * Reset decoder state and discard decoded characters to begin
+    * decoding of new UTF-8 stream. The character buffer is kept.
+    */
+   public void reset() {
+      mState = ACCEPT;
+      mCodePoint = 0;
+      mPos = 0;
+      mLength = 0;
+   }
+
+   /**
+    * Get number of octets decoded so far. When decode() returns
+    * false, this is the position of the UTF-8 violation.
+    *
+    * @return     Current position within stream decoded.
+    */
+   public int position() {
+      return mPos;
+   }
+
+   /**
+    * Check if incremental decoding (currently) has ended on
+    * a complete encoded Unicode codepoint.
+    *
+    * @return        True, iff currently ended on codepoint.
+    */
+   public boolean isValid() {
+      return mState == ACCEPT;
+   }
+
+   /**
+    * Get number of characters decoded.
+    *
+    * @return        Number of UTF-16 characters decoded.
+    */
+   public int length() {
+      return mLength;
+   }
+
+   /**
+    * Validate and decode a chunk of octets.
+    *
+    * @param data    Buffer which contains chunk to decode.
+    * @param off     Offset within buffer where to continue with decoding.
+    * @param len     Length in octets to decode within buffer.
+    * @return        False as soon as UTF-8 violation occurs, true otherwise.
+    */
+   public boolean decode(byte[] data, int off, int len) {
+      ensureCapacity(mLength + len + 1);
+
+      char[] chars = mChars;
+      int length = mLength;
+      int state = mState;
+      int codePoint = mCodePoint;
+
+      for (int i = off; i < off + len; ++i) {
+         int b = data[i];
+
+         // ASCII outside of multi-octet sequence
+         if (b >= 0 && state == ACCEPT) {
+            chars[length++] = (char) b;
+            continue;
+         }
+
+         b &= 0xff;
+         int type = Utf8Validator.octetType(b);
+         codePoint = (state != ACCEPT) ? (b & 0x3f) | (codePoint << 6) : (0xff >> type) & b;
+         state = Utf8Validator.nextState(state, type);
+
+         if (state == ACCEPT) {
+            length = append(chars, length, codePoint);
+         } else if (state == REJECT) {
+            mState = state;
+            mLength = length;
+            mPos += i - off;
+            return false;
+         }
+      }
+
+      mState = state;
+      mCodePoint = codePoint;
+      mLength = length;
+      mPos += len;
+      return true;
+   }
+
+   /**
+    * Validate and decode a chunk of octets.
+    *
+    * @param data       Buffer which contains chunk to decode.
+    * @param position   Absolute position within buffer where chunk begins.
+    * @param len        Length in octets to decode within buffer.
+    * @return           False as soon as UTF-8 violation occurs, true otherwise.
+    */
+   public boolean decode(ByteBuffer data, int position, int len) {
+      if (data.hasArray()) {
+         return decode(data.array(), data.arrayOffset() + position, len);
+      }
+
+      ensureCapacity(mLength + len + 1);
+
+      char[] chars = mChars;
+      int length = mLength;
+      int state = mState;
+      int codePoint = mCodePoint;
+
+      for (int i = position; i < position + len; ++i) {
+         int b = data.get(i);
+
+         // ASCII outside of multi-octet sequence
+         if (b >= 0 && state == ACCEPT) {
+            chars[length++] = (char) b;
+            continue;
+         }
+
+         b &= 0xff;
+         int type = Utf8Validator.octetType(b);
+         codePoint = (state != ACCEPT) ? (b & 0x3f) | (codePoint << 6) : (0xff >> type) & b;
+         state = Utf8Validator.nextState(state, type);
+
+         if (state == ACCEPT) {
+            length = append(chars, length, codePoint);
+         } else if (state == REJECT) {
+            mState = state;
+            mLength = length;
+            mPos += i - position;
+            return false;
+         }
+      }
+
+      mState = state;
+      mCodePoint = codePoint;
+      mLength = length;
+      mPos += len;
+      return true;
+   }
+
+   /**
+    * Create String from characters decoded so far.
+    *
+    * @return        Decoded string.
+    */
+   @Override
+   public String toString() {
+      return new String(mChars, 0, mLength);
+   }
+
+   private static int append(char[] chars, int length, int codePoint) {
+      if (codePoint < 0x10000) {
+         chars[length++] = (char) codePoint;
+      } else {
+         chars[length++] = (char) (0xd7c0 + (codePoint >> 10));
+         chars[length++] = (char) (0xdc00 + (codePoint & 0x3ff));
+      }
+      return length;
+   }
+
+   /**
+    * Each octet decodes to at most one UTF-16 character, except for the
+    * last octet of a 4-octet sequence begun in a previous chunk, which
+    * completes a surrogate pair. So one more than the number of octets
+    * to decode is always enough.
+    */
+   private void ensureCapacity(int capacity) {
+      if (capacity > mChars.length) {
+         char[] chars = new char[Math.max(capacity, 2 * mChars.length)];
+         System.arraycopy(mChars, 0, chars, 0, mLength);
+         mChars = chars;
+      }
+   }
+}
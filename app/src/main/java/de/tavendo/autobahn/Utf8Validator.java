@@ -21,12 +21,13 @@
 
 package de.tavendo.autobahn;
 
+import java.nio.ByteBuffer;
 
 /**
  *  Incremental UTF-8 validator. The validator runs with constant memory
  *  consumption (minimal state). Purpose is to validate UTF-8, not to
- *  decode (which could be done easily also, but we rely on Java built in
- *  facilities for that).
+ *  decode (see Utf8Decoder for that). Runs of ASCII are skipped 8 octets
+ *  at a time, the DFA only runs around multi-octet sequences.
  *
  *  Implements the algorithm "Flexible and Economical UTF-8 Decoder" by
  *  Bjoern Hoehrmann (http://bjoern.hoehrmann.de/utf-8/decoder/dfa/).
@@ -54,6 +55,30 @@ public class Utf8Validator {
    private static final int ACCEPT = 0;
    private static final int REJECT = 1;
 
+   /**
+    * Get DFA character class of an octet (for Utf8Decoder).
+    *
+    * @param octet      Octet (0..255).
+    * @return           Character class.
+    */
+   static int octetType(int octet) {
+      return DFA[octet];
+   }
+
+   /**
+    * Get DFA state following a character class (for Utf8Decoder).
+    *
+    * @param state      Current state.
+    * @param type       Character class of next octet.
+    * @return           Next state.
+    */
+   static int nextState(int state, int type) {
+      return DFA[256 + (state << 4) + type];
+   }
+
+   /// High bit of every octet in a long.
+   private static final long ASCII_MASK = 0x8080808080808080L;
+
    private int mState;
    private int mPos;
 
@@ -105,13 +130,81 @@ public class Utf8Validator {
     * @return        False as soon as UTF-8 violation occurs, true otherwise.
     */
    public boolean validate(byte[] data, int off, int len) {
-      for (int i = off; i < off + len; ++i) {
-         mState = DFA[256 + (mState << 4) + DFA[(int) (0xff & data[i])]];
-         if (mState == REJECT) {
-            mPos += i;
+      int end = off + len;
+      int i = off;
+      int state = mState;
+
+      while (i < end) {
+         if (state == ACCEPT && data[i] >= 0) {
+            // skip ASCII run, 8 octets at a time, then octet by octet
+            ++i;
+            while (i + 8 <= end &&
+                  ((data[i] | data[i + 1] | data[i + 2] | data[i + 3] |
+                    data[i + 4] | data[i + 5] | data[i + 6] | data[i + 7]) & 0x80) == 0) {
+               i += 8;
+            }
+            while (i < end && data[i] >= 0) {
+               ++i;
+            }
+            continue;
+         }
+
+         state = DFA[256 + (state << 4) + DFA[0xff & data[i]]];
+         if (state == REJECT) {
+            mState = state;
+            mPos += i - off;
             return false;
          }
+         ++i;
       }
+
+      mState = state;
+      mPos += len;
+      return true;
+   }
+
+   /**
+    * Validate a chunk of octets for UTF-8. Buffers backed by an array
+    * are validated on the array, others are read a long at a time.
+    * The position of the buffer is not changed.
+    *
+    * @param data       Buffer which contains chunk to validate.
+    * @param position   Absolute position within buffer where chunk begins.
+    * @param len        Length in octets to validate within buffer.
+    * @return           False as soon as UTF-8 violation occurs, true otherwise.
+    */
+   public boolean validate(ByteBuffer data, int position, int len) {
+      if (data.hasArray()) {
+         return validate(data.array(), data.arrayOffset() + position, len);
+      }
+
+      int end = position + len;
+      int i = position;
+      int state = mState;
+
+      while (i < end) {
+         if (state == ACCEPT && data.get(i) >= 0) {
+            // skip ASCII run, 8 octets at a time, then octet by octet
+            ++i;
+            while (i + 8 <= end && (data.getLong(i) & ASCII_MASK) == 0) {
+               i += 8;
+            }
+            while (i < end && data.get(i) >= 0) {
+               ++i;
+            }
+            continue;
+         }
+
+         state = DFA[256 + (state << 4) + DFA[0xff & data.get(i)]];
+         if (state == REJECT) {
+            mState = state;
+            mPos += i - position;
+            return false;
+         }
+         ++i;
+      }
+
+      mState = state;
       mPos += len;
       return true;
    }
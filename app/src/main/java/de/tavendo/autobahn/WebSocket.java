@@ -1,6 +1,13 @@
 package de.tavendo.autobahn;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Map;
 
 public interface WebSocket {
 	public static final String UTF8_ENCODING = "UTF-8";
@@ -58,11 +65,195 @@ public interface WebSocket {
 		public void onBinaryMessage(byte[] payload);
 	}
 
+	/**
+	 * Session handler that is told about the server's handshake response,
+	 * i.e. to look at the negotiated subprotocol and extensions.
+	 */
+	public interface WebSocketHandshakeObserver extends WebSocketConnectionObserver {
+
+		/**
+		 * Fired when the server's HTTP response to the opening handshake has
+		 * been received, before onOpen() (or onClose() on a failed handshake).
+		 *
+		 * @param statusCode HTTP status code.
+		 * @param headers    HTTP response headers, names in lower case.
+		 */
+		public void onServerHandshake(int statusCode, Map<String, String> headers);
+	}
+
+	/**
+	 * Session handler receiving pooled payloads, used when a PayloadBufferPool
+	 * has been set in the options. The observer owns the payload handed in and
+	 * must call release() on it when done.
+	 */
+	public interface WebSocketPooledMessageObserver extends WebSocketConnectionObserver {
+
+		/**
+		 * Fired when a text message has been received (and text
+		 * messages are set to be received raw).
+		 *
+		 * @param payload    Text message payload as raw UTF-8.
+		 */
+		public void onRawTextMessage(PayloadBuffer payload);
+
+		/**
+		 * Fired when a binary message has been received.
+		 *
+		 * @param payload    Binary message payload.
+		 */
+		public void onBinaryMessage(PayloadBuffer payload);
+	}
+
+	/**
+	 * Session handler receiving data messages frame by frame, used when
+	 * message fragment delivery has been enabled in the options. Messages
+	 * are then never reassembled, so their size is not limited by the
+	 * maximum message payload size.
+	 */
+	public interface WebSocketFragmentObserver extends WebSocketConnectionObserver {
+
+		/**
+		 * Fired for each frame of a text message. Frame boundaries may fall
+		 * within an encoded Unicode code point.
+		 *
+		 * @param payload    Frame payload as raw UTF-8 (empty array for empty frame).
+		 * @param last       True, iff this frame completes the message.
+		 */
+		public void onTextFragment(byte[] payload, boolean last);
+
+		/**
+		 * Fired for each frame of a binary message.
+		 *
+		 * @param payload    Frame payload (empty array for empty frame).
+		 * @param last       True, iff this frame completes the message.
+		 */
+		public void onBinaryFragment(byte[] payload, boolean last);
+	}
+
+	/**
+	 * Session handler receiving oversized binary messages, used when a spill
+	 * threshold has been set in the options. Binary messages larger than the
+	 * threshold are assembled in a temporary file instead of on the heap.
+	 */
+	public interface WebSocketSpilledMessageObserver extends WebSocketConnectionObserver {
+
+		/**
+		 * Fired when a binary message larger than the spill
+		 * threshold has been received.
+		 *
+		 * @param payload    Binary message payload, mapped read-only.
+		 */
+		public void onBinaryMessage(MappedByteBuffer payload);
+	}
+
+	/**
+	 * Session handler receiving text messages as lazily decoded UTF-8, used
+	 * when text messages are set to be received raw. Replaces onRawTextMessage()
+	 * for such observers.
+	 */
+	public interface WebSocketUtf8TextObserver extends WebSocketConnectionObserver {
+
+		/**
+		 * Fired when a text message has been received (and text
+		 * messages are set to be received raw).
+		 *
+		 * @param payload    Text message payload, decoded only when accessed.
+		 */
+		public void onUtf8TextMessage(Utf8CharSequence payload);
+	}
+
+	/**
+	 * Session handler receiving data messages in batches, used when batch
+	 * delivery has been enabled in the options. Messages are handed over
+	 * in order of arrival, control and lifecycle events (onOpen(), onClose())
+	 * are still fired individually and in order between batches.
+	 */
+	public interface WebSocketBatchObserver extends WebSocketConnectionObserver {
+
+		/**
+		 * Fired with consecutive data messages received by a single read.
+		 * Elements are WebSocketMessage.TextMessage, RawTextMessage or
+		 * BinaryMessage, or the pooled, mapped and fragment message types
+		 * where the respective options are enabled. Pooled payloads are
+		 * owned by the observer and must be released.
+		 *
+		 * @param messages   Received messages, only valid during the call.
+		 */
+		public void onMessages(List<WebSocketMessage.Message> messages);
+	}
+
+	/**
+	 * Completion hook for messages sent from a ByteBuffer, telling the
+	 * sender when the writer is done with the buffer and it may be reused.
+	 */
+	public interface WebSocketPayloadReleaseCallback {
+
+		/**
+		 * Fired on the writer thread once the payload has been framed into
+		 * the output (or the message has failed), so must return quickly.
+		 *
+		 * @param payload    The buffer handed to send, position and limit unchanged.
+		 */
+		public void onPayloadReleased(ByteBuffer payload);
+	}
+
+	/**
+	 * Session handler told when the send buffer can take messages again,
+	 * used when a send buffer limit has been set in the options.
+	 */
+	public interface WebSocketWritableObserver extends WebSocketConnectionObserver {
+
+		/**
+		 * Fired when queued outgoing payload has dropped to the low
+		 * watermark, after the send buffer was found full.
+		 */
+		public void onWritable();
+	}
+
+	/**
+	 * Completion hook for sent messages.
+	 */
+	public interface WebSocketSendCallback {
+
+		/**
+		 * Fired on the writer thread once the message has been
+		 * written to the socket, so must return quickly.
+		 */
+		public void onSent();
+
+		/**
+		 * Fired on the writer thread when the message could not be sent,
+		 * e.g. it exceeds the payload limit or the connection is gone.
+		 *
+		 * @param e          Cause of failure.
+		 */
+		public void onSendFailed(Exception e);
+	}
+
 	public void connect(URI uri, WebSocketConnectionObserver observer) throws WebSocketException;
 	public void connect(URI uri, WebSocketConnectionObserver observer, WebSocketOptions options) throws WebSocketException;
 	public void disconnect();
 	public boolean isConnected();
 	public void sendBinaryMessage(byte[] payload);
+	public void sendBinaryMessage(byte[] payload, boolean highPriority);
+	public void sendBinaryMessage(byte[] payload, WebSocketSendCallback callback);
+	public boolean offerBinaryMessage(byte[] payload, WebSocketSendCallback callback);
+	public void sendBinaryMessage(ByteBuffer payload);
+	public void sendBinaryMessage(ByteBuffer payload, WebSocketPayloadReleaseCallback callback);
+	public void sendFile(File file) throws IOException;
+	public void sendFile(FileChannel channel, long position, long count);
 	public void sendRawTextMessage(byte[] payload);
+	public void sendRawTextMessage(byte[] payload, boolean highPriority);
+	public void sendRawTextMessage(byte[] payload, WebSocketSendCallback callback);
+	public boolean offerRawTextMessage(byte[] payload, WebSocketSendCallback callback);
+	public void sendRawTextMessage(ByteBuffer payload);
+	public void sendRawTextMessage(ByteBuffer payload, WebSocketPayloadReleaseCallback callback);
 	public void sendTextMessage(String payload);
+	public void sendTextMessage(String payload, boolean highPriority);
+	public void sendTextMessage(String payload, WebSocketSendCallback callback);
+	public boolean offerTextMessage(String payload, WebSocketSendCallback callback);
+	public void sendPreparedMessage(PreparedMessage message);
+	public void sendPreparedMessage(PreparedMessage message, boolean highPriority);
+	public void sendPreparedMessage(PreparedMessage message, WebSocketSendCallback callback);
+	public boolean offerPreparedMessage(PreparedMessage message, WebSocketSendCallback callback);
 }
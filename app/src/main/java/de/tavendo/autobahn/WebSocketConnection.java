@@ -18,10 +18,19 @@
 
 package de.tavendo.autobahn;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 import javax.net.SocketFactory;
 
@@ -56,6 +65,8 @@ public class WebSocketConnection implements WebSocket {
 	private WebSocketOptions mWebSocketOptions;
 	private boolean mPreviousConnection = false;
 
+	private Map<String, String> mServerHandshakeHeaders = Collections.emptyMap();
+
 
 
 	public WebSocketConnection() {
@@ -69,17 +80,300 @@ public class WebSocketConnection implements WebSocket {
 	//
 	// Forward to the writer thread
 	public void sendTextMessage(String payload) {
-		mWebSocketWriter.forward(new WebSocketMessage.TextMessage(payload));
+		mWebSocketWriter.put(new WebSocketMessage.TextMessage(payload), false);
+	}
+
+
+	/**
+	 * Send a text message, optionally with high priority. High priority
+	 * messages overtake normal ones still waiting to be sent.
+	 *
+	 * @param payload       Text message payload.
+	 * @param highPriority  True, iff the message should overtake normal ones.
+	 */
+	public void sendTextMessage(String payload, boolean highPriority) {
+		mWebSocketWriter.put(new WebSocketMessage.TextMessage(payload), highPriority);
 	}
 
 
 	public void sendRawTextMessage(byte[] payload) {
-		mWebSocketWriter.forward(new WebSocketMessage.RawTextMessage(payload));
+		mWebSocketWriter.put(new WebSocketMessage.RawTextMessage(payload), false);
+	}
+
+
+	/**
+	 * Send a raw (UTF-8) text message, optionally with high priority.
+	 *
+	 * @param payload       Text message payload as raw UTF-8.
+	 * @param highPriority  True, iff the message should overtake normal ones.
+	 */
+	public void sendRawTextMessage(byte[] payload, boolean highPriority) {
+		mWebSocketWriter.put(new WebSocketMessage.RawTextMessage(payload), highPriority);
+	}
+
+
+	/**
+	 * Send a raw (UTF-8) text message from the remaining octets of a buffer,
+	 * which may be direct or a slice. The buffer is not copied, the writer
+	 * takes it over and frames it straight into its output, so it must not
+	 * be touched afterwards.
+	 *
+	 * @param payload    Text message payload as raw UTF-8.
+	 */
+	public void sendRawTextMessage(ByteBuffer payload) {
+		sendRawTextMessage(payload, null);
+	}
+
+
+	/**
+	 * Send a raw (UTF-8) text message from the remaining octets of a buffer,
+	 * which may be direct or a slice. The buffer is not copied and must not
+	 * be modified until the callback has been fired.
+	 *
+	 * @param payload    Text message payload as raw UTF-8.
+	 * @param callback   Fired when the buffer may be reused (or null).
+	 */
+	public void sendRawTextMessage(ByteBuffer payload, WebSocket.WebSocketPayloadReleaseCallback callback) {
+		mWebSocketWriter.put(new WebSocketMessage.ByteBufferMessage(payload, true, callback), false);
 	}
 
 
 	public void sendBinaryMessage(byte[] payload) {
-		mWebSocketWriter.forward(new WebSocketMessage.BinaryMessage(payload));
+		mWebSocketWriter.put(new WebSocketMessage.BinaryMessage(payload), false);
+	}
+
+
+	/**
+	 * Send a binary message, optionally with high priority.
+	 *
+	 * @param payload       Binary message payload.
+	 * @param highPriority  True, iff the message should overtake normal ones.
+	 */
+	public void sendBinaryMessage(byte[] payload, boolean highPriority) {
+		mWebSocketWriter.put(new WebSocketMessage.BinaryMessage(payload), highPriority);
+	}
+
+
+	/**
+	 * Send a binary message from the remaining octets of a buffer, which
+	 * may be direct or a slice. The buffer is not copied, the writer takes
+	 * it over and frames it straight into its output, so it must not be
+	 * touched afterwards.
+	 *
+	 * @param payload    Binary message payload.
+	 */
+	public void sendBinaryMessage(ByteBuffer payload) {
+		sendBinaryMessage(payload, null);
+	}
+
+
+	/**
+	 * Send a binary message from the remaining octets of a buffer, which
+	 * may be direct or a slice. The buffer is not copied and must not be
+	 * modified until the callback has been fired.
+	 *
+	 * @param payload    Binary message payload.
+	 * @param callback   Fired when the buffer may be reused (or null).
+	 */
+	public void sendBinaryMessage(ByteBuffer payload, WebSocket.WebSocketPayloadReleaseCallback callback) {
+		mWebSocketWriter.put(new WebSocketMessage.ByteBufferMessage(payload, false, callback), false);
+	}
+
+
+	/**
+	 * Send a message prepared for repeated sending. The message can be sent
+	 * any number of times, also on other connections, without being encoded
+	 * again.
+	 *
+	 * @param message    Prepared text or binary message.
+	 */
+	public void sendPreparedMessage(PreparedMessage message) {
+		mWebSocketWriter.put(message, false);
+	}
+
+
+	/**
+	 * Send a prepared message, optionally with high priority.
+	 *
+	 * @param message       Prepared text or binary message.
+	 * @param highPriority  True, iff the message should overtake normal ones.
+	 */
+	public void sendPreparedMessage(PreparedMessage message, boolean highPriority) {
+		mWebSocketWriter.put(message, highPriority);
+	}
+
+
+	/**
+	 * Send a text message and be told once it has been written to the
+	 * socket (or has failed).
+	 *
+	 * @param payload    Text message payload.
+	 * @param callback   Fired on the writer thread when done.
+	 */
+	public void sendTextMessage(String payload, WebSocket.WebSocketSendCallback callback) {
+		mWebSocketWriter.put(new WebSocketMessage.TrackedMessage(new WebSocketMessage.TextMessage(payload), callback), false);
+	}
+
+
+	/**
+	 * Send a raw (UTF-8) text message and be told once it has been
+	 * written to the socket (or has failed).
+	 *
+	 * @param payload    Text message payload as raw UTF-8.
+	 * @param callback   Fired on the writer thread when done.
+	 */
+	public void sendRawTextMessage(byte[] payload, WebSocket.WebSocketSendCallback callback) {
+		mWebSocketWriter.put(new WebSocketMessage.TrackedMessage(new WebSocketMessage.RawTextMessage(payload), callback), false);
+	}
+
+
+	/**
+	 * Send a binary message and be told once it has been written to the
+	 * socket (or has failed).
+	 *
+	 * @param payload    Binary message payload.
+	 * @param callback   Fired on the writer thread when done.
+	 */
+	public void sendBinaryMessage(byte[] payload, WebSocket.WebSocketSendCallback callback) {
+		mWebSocketWriter.put(new WebSocketMessage.TrackedMessage(new WebSocketMessage.BinaryMessage(payload), callback), false);
+	}
+
+
+	/**
+	 * Send a prepared message and be told once it has been written to
+	 * the socket (or has failed).
+	 *
+	 * @param message    Prepared text or binary message.
+	 * @param callback   Fired on the writer thread when done.
+	 */
+	public void sendPreparedMessage(PreparedMessage message, WebSocket.WebSocketSendCallback callback) {
+		mWebSocketWriter.put(new WebSocketMessage.TrackedMessage(message, callback), false);
+	}
+
+
+	/**
+	 * Send a text message if the send buffer has room, never blocking.
+	 *
+	 * @param payload    Text message payload.
+	 * @param callback   Fired on the writer thread when done (or null).
+	 * @return           True if queued, false if the send buffer is full.
+	 */
+	public boolean offerTextMessage(String payload, WebSocket.WebSocketSendCallback callback) {
+		return mWebSocketWriter.offer(track(new WebSocketMessage.TextMessage(payload), callback), false);
+	}
+
+
+	/**
+	 * Send a raw (UTF-8) text message if the send buffer has room,
+	 * never blocking.
+	 *
+	 * @param payload    Text message payload as raw UTF-8.
+	 * @param callback   Fired on the writer thread when done (or null).
+	 * @return           True if queued, false if the send buffer is full.
+	 */
+	public boolean offerRawTextMessage(byte[] payload, WebSocket.WebSocketSendCallback callback) {
+		return mWebSocketWriter.offer(track(new WebSocketMessage.RawTextMessage(payload), callback), false);
+	}
+
+
+	/**
+	 * Send a binary message if the send buffer has room, never blocking.
+	 *
+	 * @param payload    Binary message payload.
+	 * @param callback   Fired on the writer thread when done (or null).
+	 * @return           True if queued, false if the send buffer is full.
+	 */
+	public boolean offerBinaryMessage(byte[] payload, WebSocket.WebSocketSendCallback callback) {
+		return mWebSocketWriter.offer(track(new WebSocketMessage.BinaryMessage(payload), callback), false);
+	}
+
+
+	/**
+	 * Send a prepared message if the send buffer has room, never blocking.
+	 *
+	 * @param message    Prepared text or binary message.
+	 * @param callback   Fired on the writer thread when done (or null).
+	 * @return           True if queued, false if the send buffer is full.
+	 */
+	public boolean offerPreparedMessage(PreparedMessage message, WebSocket.WebSocketSendCallback callback) {
+		return mWebSocketWriter.offer(track(message, callback), false);
+	}
+
+
+	private static Object track(Object message, WebSocket.WebSocketSendCallback callback) {
+		return callback != null ? new WebSocketMessage.TrackedMessage(message, callback) : message;
+	}
+
+
+	/**
+	 * Send a file as a single binary message. The file is mapped into
+	 * memory region by region and sent fragment by fragment, so heap usage
+	 * does not depend on the file size. Pings and pongs still go out while
+	 * the file is being sent, other messages sent meanwhile are held back.
+	 *
+	 * @param file       File to send.
+	 */
+	public void sendFile(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		boolean forwarded = false;
+		try {
+			FileChannel channel = in.getChannel();
+			sendFile(channel, 0, channel.size());
+			forwarded = true;
+		} finally {
+			// the writer owns the channel only once forwarded
+			if (!forwarded) {
+				in.close();
+			}
+		}
+	}
+
+
+	/**
+	 * Send a region of a file as a single binary message, like sendFile(File).
+	 * The writer takes over the channel and closes it once done. When the
+	 * send buffer rejects the message, the channel stays with the caller.
+	 *
+	 * @param channel    Channel of the file to send, open for reading.
+	 * @param position   Offset of the region within the file.
+	 * @param count      Length of the region.
+	 */
+	public void sendFile(FileChannel channel, long position, long count) {
+		mWebSocketWriter.put(new WebSocketMessage.FileMessage(channel, position, count), false);
+	}
+
+
+	/**
+	 * Start sending a text message incrementally. The message is complete
+	 * once the stream has been closed, until then other messages sent are
+	 * held back. Only one message stream may be open at a time, opening
+	 * another one throws IllegalStateException.
+	 *
+	 * @return           Stream taking the message payload as UTF-8.
+	 */
+	public WebSocketMessageOutputStream openTextMessageStream() {
+		return openMessageStream(true);
+	}
+
+
+	/**
+	 * Start sending a binary message incrementally. The message is complete
+	 * once the stream has been closed, until then other messages sent are
+	 * held back. Only one message stream may be open at a time, opening
+	 * another one throws IllegalStateException.
+	 *
+	 * @return           Stream taking the message payload.
+	 */
+	public WebSocketMessageOutputStream openBinaryMessageStream() {
+		return openMessageStream(false);
+	}
+
+
+	private WebSocketMessageOutputStream openMessageStream(boolean text) {
+		if (!mWebSocketWriter.openStream()) {
+			throw new IllegalStateException("message stream already open");
+		}
+		return new WebSocketMessageOutputStream(mWebSocketWriter, text, mWebSocketOptions.getOutgoingFragmentSize());
 	}
 
 
@@ -89,6 +383,106 @@ public class WebSocketConnection implements WebSocket {
 	}
 
 
+	/**
+	 * Get current size of the receive buffer (for monitoring).
+	 *
+	 * @return           Receive buffer size in octets, 0 when not connected.
+	 */
+	public int getReadBufferSize() {
+		WebSocketReader reader = mWebSocketReader;
+		return reader != null ? reader.getReadBufferSize() : 0;
+	}
+
+
+	/**
+	 * Get typical size of recently received frames (for monitoring).
+	 *
+	 * @return           Typical frame size in octets, 0 when unknown.
+	 */
+	public int getTypicalFrameSize() {
+		WebSocketReader reader = mWebSocketReader;
+		return reader != null ? reader.getTypicalFrameSize() : 0;
+	}
+
+
+	/**
+	 * Get number of received data messages not yet delivered to the
+	 * observer, i.e. the depth of the receive queue.
+	 *
+	 * @return           Number of messages.
+	 */
+	public int getReceiveQueueDepth() {
+		WebSocketReader reader = mWebSocketReader;
+		return reader != null ? reader.getQueuedMessageCount() : 0;
+	}
+
+
+	/**
+	 * Get payload size of received data messages not yet delivered
+	 * to the observer.
+	 *
+	 * @return           Payload octets.
+	 */
+	public long getReceiveQueueBytes() {
+		WebSocketReader reader = mWebSocketReader;
+		return reader != null ? reader.getQueuedBytes() : 0;
+	}
+
+
+	/**
+	 * Get payload size of sent data messages not yet taken up by the
+	 * writer. Only kept when a send buffer limit is set in the options.
+	 *
+	 * @return           Payload octets.
+	 */
+	public long getSendBufferBytes() {
+		WebSocketWriter writer = mWebSocketWriter;
+		return writer != null ? writer.getSendBufferBytes() : 0;
+	}
+
+
+	/**
+	 * Check whether the send buffer has room, i.e. sending would
+	 * neither block nor be rejected.
+	 *
+	 * @return           True, iff writable.
+	 */
+	public boolean isWritable() {
+		WebSocketWriter writer = mWebSocketWriter;
+		return writer != null && writer.isWritable();
+	}
+
+
+	/**
+	 * Get HTTP headers of the server's response to the last opening handshake.
+	 *
+	 * @return           Response headers, names in lower case.
+	 */
+	public Map<String, String> getServerHandshakeHeaders() {
+		return mServerHandshakeHeaders;
+	}
+
+
+	/**
+	 * Get subprotocol selected by the server in the last opening handshake.
+	 *
+	 * @return           Subprotocol, or null when none was selected.
+	 */
+	public String getSubprotocol() {
+		return mServerHandshakeHeaders.get("sec-websocket-protocol");
+	}
+
+
+	/**
+	 * Get extensions accepted by the server in the last opening handshake.
+	 *
+	 * @return           Extensions header value, or null when none were accepted.
+	 */
+	public String getExtensions() {
+		return mServerHandshakeHeaders.get("sec-websocket-extensions");
+	}
+
+
 
 	private void failConnection(WebSocketCloseNotification code, String reason) {
 		Log.d(TAG, "fail connection [code = " + code + ", reason = " + reason);
@@ -165,6 +559,13 @@ public class WebSocketConnection implements WebSocket {
 				throw new WebSocketException("unsupported scheme for WebSockets URI");
 			}
 
+			if (options.getDeliverMessageFragments() && !(connectionObserver instanceof WebSocket.WebSocketFragmentObserver)) {
+				throw new WebSocketException("message fragment delivery requires a WebSocketFragmentObserver");
+			}
+			if (options.getSpillThreshold() > 0 && !(connectionObserver instanceof WebSocket.WebSocketSpilledMessageObserver)) {
+				throw new WebSocketException("spilling messages requires a WebSocketSpilledMessageObserver");
+			}
+
 			this.mWebSocketSubprotocols = subprotocols;
 			this.mWebSocketConnectionObserver = new WeakReference<WebSocket.WebSocketConnectionObserver>(connectionObserver);
 			this.mWebSocketOptions = new WebSocketOptions(options);
@@ -326,9 +727,18 @@ public class WebSocketConnection implements WebSocket {
 	/**
 	 * Create WebSockets background reader.
 	 */
-	protected void createReader() {
+	protected void createReader() throws IOException {
 
 		mWebSocketReader = new WebSocketReader(mHandler, mSocket, mWebSocketOptions, WS_READER);
+
+		SocketChannel socketChannel = mSocket.getChannel();
+		if (socketChannel != null && !socketChannel.isBlocking()) {
+			mWebSocketOptions.getReaderPool().register(mWebSocketReader);
+
+			Log.d(TAG, "WebSocket reader created and registered with reader pool.");
+			return;
+		}
+
 		mWebSocketReader.start();
 
 		synchronized (mWebSocketReader) {
@@ -342,10 +752,57 @@ public class WebSocketConnection implements WebSocket {
 	}
 
 	private void handleMessage(Message message) {
+		WebSocketReader reader = mWebSocketReader;
+
+		if (message.obj instanceof WebSocketMessage.MessageBatch) {
+			dispatchMessageBatch(((WebSocketMessage.MessageBatch) message.obj).mMessages);
+		} else {
+			dispatchMessage(message.obj);
+		}
+
+		// messages left over from a reader replaced by a reconnect
+		// must not count against the current reader's watermarks
+		if (reader != null && reader.isPostedBy(message)) {
+			reader.delivered(message.obj);
+		}
+	}
+
+	/**
+	 * Dispatch messages received by a single read. Runs of data messages go
+	 * to a batch observer in one call, everything else is dispatched one by one.
+	 */
+	private void dispatchMessageBatch(List<WebSocketMessage.Message> messages) {
+		WebSocket.WebSocketConnectionObserver webSocketObserver = mWebSocketConnectionObserver.get();
+
+		if (!(webSocketObserver instanceof WebSocket.WebSocketBatchObserver)) {
+			for (WebSocketMessage.Message message : messages) {
+				dispatchMessage(message);
+			}
+			return;
+		}
+
+		WebSocket.WebSocketBatchObserver batchObserver = (WebSocket.WebSocketBatchObserver) webSocketObserver;
+		int start = 0;
+		for (int i = 0; i < messages.size(); ++i) {
+			WebSocketMessage.Message message = messages.get(i);
+			if (!WebSocketReader.isDataMessage(message)) {
+				if (i > start) {
+					batchObserver.onMessages(messages.subList(start, i));
+				}
+				dispatchMessage(message);
+				start = i + 1;
+			}
+		}
+		if (start < messages.size()) {
+			batchObserver.onMessages(messages.subList(start, messages.size()));
+		}
+	}
+
+	private void dispatchMessage(Object message) {
 		WebSocket.WebSocketConnectionObserver webSocketObserver = mWebSocketConnectionObserver.get();
 
-		if (message.obj instanceof WebSocketMessage.TextMessage) {
-			WebSocketMessage.TextMessage textMessage = (WebSocketMessage.TextMessage) message.obj;
+		if (message instanceof WebSocketMessage.TextMessage) {
+			WebSocketMessage.TextMessage textMessage = (WebSocketMessage.TextMessage) message;
 
 			if (webSocketObserver != null) {
 				webSocketObserver.onTextMessage(textMessage.mPayload);
@@ -353,17 +810,19 @@ public class WebSocketConnection implements WebSocket {
 				Log.d(TAG, "could not call onTextMessage() .. handler already NULL");
 			}
 
-		} else if (message.obj instanceof WebSocketMessage.RawTextMessage) {
-			WebSocketMessage.RawTextMessage rawTextMessage = (WebSocketMessage.RawTextMessage) message.obj;
+		} else if (message instanceof WebSocketMessage.RawTextMessage) {
+			WebSocketMessage.RawTextMessage rawTextMessage = (WebSocketMessage.RawTextMessage) message;
 
-			if (webSocketObserver != null) {
+			if (webSocketObserver instanceof WebSocket.WebSocketUtf8TextObserver) {
+				((WebSocket.WebSocketUtf8TextObserver) webSocketObserver).onUtf8TextMessage(new Utf8CharSequence(rawTextMessage.mPayload));
+			} else if (webSocketObserver != null) {
 				webSocketObserver.onRawTextMessage(rawTextMessage.mPayload);
 			} else {
 				Log.d(TAG, "could not call onRawTextMessage() .. handler already NULL");
 			}
 
-		} else if (message.obj instanceof WebSocketMessage.BinaryMessage) {
-			WebSocketMessage.BinaryMessage binaryMessage = (WebSocketMessage.BinaryMessage) message.obj;
+		} else if (message instanceof WebSocketMessage.BinaryMessage) {
+			WebSocketMessage.BinaryMessage binaryMessage = (WebSocketMessage.BinaryMessage) message;
 
 			if (webSocketObserver != null) {
 				webSocketObserver.onBinaryMessage(binaryMessage.mPayload);
@@ -371,31 +830,97 @@ public class WebSocketConnection implements WebSocket {
 				Log.d(TAG, "could not call onBinaryMessage() .. handler already NULL");
 			}
 
-		} else if (message.obj instanceof WebSocketMessage.Ping) {
-			WebSocketMessage.Ping ping = (WebSocketMessage.Ping) message.obj;
+		} else if (message instanceof WebSocketMessage.PooledRawTextMessage) {
+			PayloadBuffer payload = ((WebSocketMessage.PooledRawTextMessage) message).mPayload;
+
+			if (webSocketObserver instanceof WebSocket.WebSocketPooledMessageObserver) {
+				((WebSocket.WebSocketPooledMessageObserver) webSocketObserver).onRawTextMessage(payload);
+			} else if (webSocketObserver instanceof WebSocket.WebSocketUtf8TextObserver) {
+				byte[] copy = payload.toByteArray();
+				payload.release();
+				((WebSocket.WebSocketUtf8TextObserver) webSocketObserver).onUtf8TextMessage(new Utf8CharSequence(copy));
+			} else if (webSocketObserver != null) {
+				byte[] copy = payload.toByteArray();
+				payload.release();
+				webSocketObserver.onRawTextMessage(copy);
+			} else {
+				payload.release();
+				Log.d(TAG, "could not call onRawTextMessage() .. handler already NULL");
+			}
+
+		} else if (message instanceof WebSocketMessage.PooledBinaryMessage) {
+			PayloadBuffer payload = ((WebSocketMessage.PooledBinaryMessage) message).mPayload;
+
+			if (webSocketObserver instanceof WebSocket.WebSocketPooledMessageObserver) {
+				((WebSocket.WebSocketPooledMessageObserver) webSocketObserver).onBinaryMessage(payload);
+			} else if (webSocketObserver != null) {
+				byte[] copy = payload.toByteArray();
+				payload.release();
+				webSocketObserver.onBinaryMessage(copy);
+			} else {
+				payload.release();
+				Log.d(TAG, "could not call onBinaryMessage() .. handler already NULL");
+			}
+
+		} else if (message instanceof WebSocketMessage.MappedBinaryMessage) {
+			WebSocketMessage.MappedBinaryMessage mappedBinaryMessage = (WebSocketMessage.MappedBinaryMessage) message;
+
+			if (webSocketObserver != null) {
+				((WebSocket.WebSocketSpilledMessageObserver) webSocketObserver).onBinaryMessage(mappedBinaryMessage.mPayload);
+			} else {
+				Log.d(TAG, "could not call onBinaryMessage() .. handler already NULL");
+			}
+
+		} else if (message instanceof WebSocketMessage.TextFragment) {
+			WebSocketMessage.TextFragment textFragment = (WebSocketMessage.TextFragment) message;
+
+			if (webSocketObserver != null) {
+				((WebSocket.WebSocketFragmentObserver) webSocketObserver).onTextFragment(textFragment.mPayload, textFragment.mLast);
+			} else {
+				Log.d(TAG, "could not call onTextFragment() .. handler already NULL");
+			}
+
+		} else if (message instanceof WebSocketMessage.BinaryFragment) {
+			WebSocketMessage.BinaryFragment binaryFragment = (WebSocketMessage.BinaryFragment) message;
+
+			if (webSocketObserver != null) {
+				((WebSocket.WebSocketFragmentObserver) webSocketObserver).onBinaryFragment(binaryFragment.mPayload, binaryFragment.mLast);
+			} else {
+				Log.d(TAG, "could not call onBinaryFragment() .. handler already NULL");
+			}
+
+		} else if (message instanceof WebSocketMessage.Ping) {
+			WebSocketMessage.Ping ping = (WebSocketMessage.Ping) message;
 			Log.d(TAG, "WebSockets Ping received");
 
 			WebSocketMessage.Pong pong = new WebSocketMessage.Pong();
 			pong.mPayload = ping.mPayload;
 			mWebSocketWriter.forward(pong);
 
-		} else if (message.obj instanceof WebSocketMessage.Pong) {
-			WebSocketMessage.Pong pong = (WebSocketMessage.Pong) message.obj;
+		} else if (message instanceof WebSocketMessage.Pong) {
+			WebSocketMessage.Pong pong = (WebSocketMessage.Pong) message;
 
 			Log.d(TAG, "WebSockets Pong received" + pong.mPayload);
 
-		} else if (message.obj instanceof WebSocketMessage.Close) {
-			WebSocketMessage.Close close = (WebSocketMessage.Close) message.obj;
+		} else if (message instanceof WebSocketMessage.Close) {
+			WebSocketMessage.Close close = (WebSocketMessage.Close) message;
 
 			Log.d(TAG, "WebSockets Close received (" + close.getCode() + " - " + close.getReason() + ")");
 
 			mWebSocketWriter.forward(new WebSocketMessage.Close(WebSocketCloseCode.NORMAL));
 
-		} else if (message.obj instanceof WebSocketMessage.ServerHandshake) {
-			WebSocketMessage.ServerHandshake serverHandshake = (WebSocketMessage.ServerHandshake) message.obj;
+		} else if (message instanceof WebSocketMessage.ServerHandshake) {
+			WebSocketMessage.ServerHandshake serverHandshake = (WebSocketMessage.ServerHandshake) message;
 
 			Log.d(TAG, "opening handshake received");
 
+			if (serverHandshake.mHeaders != null) {
+				mServerHandshakeHeaders = serverHandshake.mHeaders;
+			}
+			if (webSocketObserver instanceof WebSocket.WebSocketHandshakeObserver) {
+				((WebSocket.WebSocketHandshakeObserver) webSocketObserver).onServerHandshake(serverHandshake.mStatusCode, mServerHandshakeHeaders);
+			}
+
 			if (serverHandshake.mSuccess) {
 				if (webSocketObserver != null) {
 					webSocketObserver.onOpen();
@@ -405,24 +930,29 @@ public class WebSocketConnection implements WebSocket {
 				mPreviousConnection = true;
 			}
 
-		} else if (message.obj instanceof WebSocketMessage.ConnectionLost) {
-			//			WebSocketMessage.ConnectionLost connectionLost = (WebSocketMessage.ConnectionLost) message.obj;
+		} else if (message instanceof WebSocketMessage.Writable) {
+			if (webSocketObserver instanceof WebSocket.WebSocketWritableObserver) {
+				((WebSocket.WebSocketWritableObserver) webSocketObserver).onWritable();
+			}
+
+		} else if (message instanceof WebSocketMessage.ConnectionLost) {
+			//			WebSocketMessage.ConnectionLost connectionLost = (WebSocketMessage.ConnectionLost) message;
 			failConnection(WebSocketCloseNotification.CONNECTION_LOST, "WebSockets connection lost");
 
-		} else if (message.obj instanceof WebSocketMessage.ProtocolViolation) {
-			//			WebSocketMessage.ProtocolViolation protocolViolation = (WebSocketMessage.ProtocolViolation) message.obj;
+		} else if (message instanceof WebSocketMessage.ProtocolViolation) {
+			//			WebSocketMessage.ProtocolViolation protocolViolation = (WebSocketMessage.ProtocolViolation) message;
 			failConnection(WebSocketCloseNotification.PROTOCOL_ERROR, "WebSockets protocol violation");
 
-		} else if (message.obj instanceof WebSocketMessage.Error) {
-			WebSocketMessage.Error error = (WebSocketMessage.Error) message.obj;
+		} else if (message instanceof WebSocketMessage.Error) {
+			WebSocketMessage.Error error = (WebSocketMessage.Error) message;
 			failConnection(WebSocketCloseNotification.INTERNAL_ERROR, "WebSockets internal error (" + error.mException.toString() + ")");
 
-		} else if (message.obj instanceof WebSocketMessage.ServerError) {
-			WebSocketMessage.ServerError error = (WebSocketMessage.ServerError) message.obj;
+		} else if (message instanceof WebSocketMessage.ServerError) {
+			WebSocketMessage.ServerError error = (WebSocketMessage.ServerError) message;
 			failConnection(WebSocketCloseNotification.SERVER_ERROR, "Server error " + error.mStatusCode + " (" + error.mStatusMessage + ")");
 
 		} else {
-			processAppMessage(message.obj);
+			processAppMessage(message);
 
 		}
 	}
@@ -433,6 +963,7 @@ public class WebSocketConnection implements WebSocket {
 		private static final String WS_CONNECTOR = "WebSocketConnector";
 
 		private final URI mWebSocketURI;
+		private final WebSocketOptions mWebSocketOptions;
 
 		private Socket mSocket = null;
 		private String mFailureMessage = null;
@@ -445,6 +976,7 @@ public class WebSocketConnection implements WebSocket {
 			this.setName(WS_CONNECTOR);
 			
 			this.mWebSocketURI = uri;
+			this.mWebSocketOptions = options;
 		}
 
 
@@ -476,15 +1008,29 @@ public class WebSocketConnection implements WebSocket {
 					}
 				}
 				
-				SocketFactory factory = null;
-				if (mWebSocketURI.getScheme().equalsIgnoreCase(WSS_URI_SCHEME)) {
-					factory = SSLCertificateSocketFactory.getDefault();
+				boolean secure = mWebSocketURI.getScheme().equalsIgnoreCase(WSS_URI_SCHEME);
+				if (!secure && mWebSocketOptions.getReaderPool() != null) {
+					// Non-blocking channel, served by the reader pool
+					SocketChannel socketChannel = SocketChannel.open();
+					socketChannel.connect(new InetSocketAddress(host, port));
+					socketChannel.configureBlocking(false);
+					this.mSocket = socketChannel.socket();
+				} else if (!secure && mWebSocketOptions.getUseSocketChannel()) {
+					// Blocking channel, so the writer can keep using the socket's streams
+					SocketChannel socketChannel = SocketChannel.open();
+					socketChannel.connect(new InetSocketAddress(host, port));
+					this.mSocket = socketChannel.socket();
 				} else {
-					factory = SocketFactory.getDefault();
-				}
+					SocketFactory factory = null;
+					if (secure) {
+						factory = SSLCertificateSocketFactory.getDefault();
+					} else {
+						factory = SocketFactory.getDefault();
+					}
 
-				// Do not replace host string with InetAddress or you lose automatic host name verification
-				this.mSocket = factory.createSocket(host, port);
+					// Do not replace host string with InetAddress or you lose automatic host name verification
+					this.mSocket = factory.createSocket(host, port);
+				}
 			} catch (IOException e) {
 				this.mFailureMessage = e.getLocalizedMessage();
 			}
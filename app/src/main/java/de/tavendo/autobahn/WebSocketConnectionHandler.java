@@ -18,11 +18,16 @@
 
 package de.tavendo.autobahn;
 
+import java.nio.MappedByteBuffer;
+import java.util.Map;
+
 /**
  * WebSockets event handler. Users will usually provide an instance of a class
  * derived from this to handle WebSockets received messages and open/close events
  */
-public class WebSocketConnectionHandler implements WebSocket.WebSocketConnectionObserver {
+public class WebSocketConnectionHandler implements WebSocket.WebSocketHandshakeObserver,
+      WebSocket.WebSocketPooledMessageObserver, WebSocket.WebSocketFragmentObserver,
+      WebSocket.WebSocketSpilledMessageObserver {
 
    /**
     * Fired when the WebSockets connection has been established.
@@ -31,6 +36,16 @@ public class WebSocketConnectionHandler implements WebSocket.WebSocketConnection
    public void onOpen() {
    }
 
+   /**
+    * Fired when the server's response to the opening handshake has
+    * been received.
+    *
+    * @param statusCode HTTP status code.
+    * @param headers    HTTP response headers, names in lower case.
+    */
+   public void onServerHandshake(int statusCode, Map<String, String> headers) {
+   }
+
    /**
     * Fired when the WebSockets connection has deceased (or could
     * not established in the first place).
@@ -67,4 +82,59 @@ public class WebSocketConnectionHandler implements WebSocket.WebSocketConnection
    public void onBinaryMessage(byte[] payload) {
    }
 
+   /**
+    * Fired when a text message has been received into a pooled buffer
+    * (and text messages are set to be received raw). Default copies the
+    * payload, releases the buffer and calls onRawTextMessage(byte[]).
+    *
+    * @param payload    Text message payload as raw UTF-8.
+    */
+   public void onRawTextMessage(PayloadBuffer payload) {
+      byte[] copy = payload.toByteArray();
+      payload.release();
+      onRawTextMessage(copy);
+   }
+
+   /**
+    * Fired when a binary message has been received into a pooled buffer.
+    * Default copies the payload, releases the buffer and calls
+    * onBinaryMessage(byte[]).
+    *
+    * @param payload    Binary message payload.
+    */
+   public void onBinaryMessage(PayloadBuffer payload) {
+      byte[] copy = payload.toByteArray();
+      payload.release();
+      onBinaryMessage(copy);
+   }
+
+   /**
+    * Fired for each frame of a text message (when message
+    * fragment delivery is enabled).
+    *
+    * @param payload    Frame payload as raw UTF-8.
+    * @param last       True, iff this frame completes the message.
+    */
+   public void onTextFragment(byte[] payload, boolean last) {
+   }
+
+   /**
+    * Fired for each frame of a binary message (when message
+    * fragment delivery is enabled).
+    *
+    * @param payload    Frame payload.
+    * @param last       True, iff this frame completes the message.
+    */
+   public void onBinaryFragment(byte[] payload, boolean last) {
+   }
+
+   /**
+    * Fired when a binary message larger than the spill threshold
+    * has been received.
+    *
+    * @param payload    Binary message payload, mapped read-only.
+    */
+   public void onBinaryMessage(MappedByteBuffer payload) {
+   }
+
 }
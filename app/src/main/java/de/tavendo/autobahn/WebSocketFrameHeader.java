@@ -7,7 +7,8 @@ public class WebSocketFrameHeader {
 	private int mHeaderLen;
 	private int mPayloadLen;
 	private int mTotalLen;
-	private byte[] mMask;
+	private boolean mMasked;
+	private int mMask;
 	
 	public int getOpcode() {
 		return mOpcode;
@@ -45,10 +46,16 @@ public class WebSocketFrameHeader {
 	public void setTotalLen(int totalLength) {
 		this.mTotalLen = totalLength;
 	}
-	public byte[] getMask() {
+	public boolean isMasked() {
+		return mMasked;
+	}
+	public void setMasked(boolean masked) {
+		this.mMasked = masked;
+	}
+	public int getMask() {
 		return mMask;
 	}
-	public void setMask(byte[] mask) {
+	public void setMask(int mask) {
 		this.mMask = mask;
 	}
 }
\ No newline at end of file
@@ -19,6 +19,11 @@
 package de.tavendo.autobahn;
 
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Map;
 
 /**
  * WebSockets message classes.
@@ -87,10 +92,20 @@ public class WebSocketMessage {
 	/// Initial WebSockets handshake (server response).
 	public static class ServerHandshake extends Message {
 		public boolean mSuccess;
+		public int mStatusCode;
+		public String mStatusMessage;
+		public Map<String, String> mHeaders;
 
 		public ServerHandshake(boolean success) {
 			mSuccess = success;
 		}
+
+		public ServerHandshake(boolean success, int statusCode, String statusMessage, Map<String, String> headers) {
+			mSuccess = success;
+			mStatusCode = statusCode;
+			mStatusMessage = statusMessage;
+			mHeaders = headers;
+		}
 	}
 
 	/// WebSockets connection lost
@@ -158,6 +173,114 @@ public class WebSocketMessage {
 		}
 	}
 
+	/// WebSockets raw (UTF-8) text or binary message to send from a (possibly direct) buffer.
+	public static class ByteBufferMessage extends Message {
+
+		public ByteBuffer mPayload;
+		public boolean mText;
+		public WebSocket.WebSocketPayloadReleaseCallback mCallback;
+
+		ByteBufferMessage(ByteBuffer payload, boolean text, WebSocket.WebSocketPayloadReleaseCallback callback) {
+			mPayload = payload;
+			mText = text;
+			mCallback = callback;
+		}
+	}
+
+	/// WebSockets binary message to send from a file region, read by mapping it into memory.
+	public static class FileMessage extends Message {
+
+		public FileChannel mChannel;
+		public long mPosition;
+		public long mEnd;
+
+		FileMessage(FileChannel channel, long position, long count) {
+			mChannel = channel;
+			mPosition = position;
+			mEnd = position + count;
+		}
+	}
+
+	/// Message to send, whose sender is told once it has been written.
+	public static class TrackedMessage extends Message {
+
+		public Object mMessage;
+		public WebSocket.WebSocketSendCallback mCallback;
+
+		TrackedMessage(Object message, WebSocket.WebSocketSendCallback callback) {
+			mMessage = message;
+			mCallback = callback;
+		}
+	}
+
+	/// Send buffer has drained to the low watermark.
+	public static class Writable extends Message {
+	}
+
+	/// WebSockets raw (UTF-8) text message received into a pooled payload buffer.
+	public static class PooledRawTextMessage extends Message {
+
+		public PayloadBuffer mPayload;
+
+		PooledRawTextMessage(PayloadBuffer payload) {
+			mPayload = payload;
+		}
+	}
+
+	/// WebSockets binary message received into a pooled payload buffer.
+	public static class PooledBinaryMessage extends Message {
+
+		public PayloadBuffer mPayload;
+
+		PooledBinaryMessage(PayloadBuffer payload) {
+			mPayload = payload;
+		}
+	}
+
+	/// Single frame of a WebSockets text message to send or received.
+	public static class TextFragment extends Message {
+
+		public byte[] mPayload;
+		public boolean mLast;
+
+		TextFragment(byte[] payload, boolean last) {
+			mPayload = payload;
+			mLast = last;
+		}
+	}
+
+	/// Single frame of a WebSockets binary message to send or received.
+	public static class BinaryFragment extends Message {
+
+		public byte[] mPayload;
+		public boolean mLast;
+
+		BinaryFragment(byte[] payload, boolean last) {
+			mPayload = payload;
+			mLast = last;
+		}
+	}
+
+	/// WebSockets binary message received into a (memory mapped) temporary file.
+	public static class MappedBinaryMessage extends Message {
+
+		public MappedByteBuffer mPayload;
+
+		MappedBinaryMessage(MappedByteBuffer payload) {
+			mPayload = payload;
+		}
+	}
+
+	/// Messages received by a single read, delivered in one go.
+	public static class MessageBatch extends Message {
+
+		public List<Message> mMessages;
+
+		MessageBatch(List<Message> messages) {
+			mMessages = messages;
+		}
+	}
+
 	/// WebSockets close to send or received.
 	public static class Close extends Message {
 		private int mCode;
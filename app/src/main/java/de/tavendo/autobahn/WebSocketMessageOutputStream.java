@@ -0,0 +1,131 @@
+/******************************************************************************
+ *
+ *  Copyright 2011-2012 Tavendo GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package de.tavendo.autobahn;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * OutputStream sending a single WebSockets message incrementally, so that the
+ * message never has to be held in memory as a whole. Data written is sent as
+ * fragments of the outgoing fragment size (see WebSocketOptions), close()
+ * completes the message. Control frames (i.e. pongs) are sent in between
+ * fragments, other messages sent while the stream is open are held back
+ * until it has been closed.
+ *
+ * Only one stream may be open per connection at a time, the next one can
+ * be opened once this one has been closed. Text streams take
+ * UTF-8, which is not validated. Obtain streams from
+ * WebSocketConnection.openTextMessageStream() or openBinaryMessageStream().
+ */
+public class WebSocketMessageOutputStream extends OutputStream {
+
+	private final WebSocketWriter mWriter;
+	private final boolean mText;
+	private final int mFragmentSize;
+
+	private byte[] mBuffer;
+	private int mCount;
+	private boolean mClosed;
+
+	WebSocketMessageOutputStream(WebSocketWriter writer, boolean text, int fragmentSize) {
+		mWriter = writer;
+		mText = text;
+		mFragmentSize = fragmentSize;
+		mBuffer = new byte[fragmentSize];
+		mCount = 0;
+		mClosed = false;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		ensureOpen();
+		if (mCount == mFragmentSize) {
+			sendFragment(false);
+		}
+		mBuffer[mCount++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		ensureOpen();
+		if (off < 0 || len < 0 || off + len > b.length) {
+			throw new IndexOutOfBoundsException();
+		}
+		while (len > 0) {
+			if (mCount == mFragmentSize) {
+				sendFragment(false);
+			}
+			int chunk = Math.min(len, mFragmentSize - mCount);
+			System.arraycopy(b, off, mBuffer, mCount, chunk);
+			mCount += chunk;
+			off += chunk;
+			len -= chunk;
+		}
+	}
+
+	/**
+	 * Send data written so far as a (non-final) fragment.
+	 */
+	@Override
+	public void flush() throws IOException {
+		ensureOpen();
+		if (mCount > 0) {
+			sendFragment(false);
+		}
+	}
+
+	/**
+	 * Send remaining data as final fragment, completing the message.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (!mClosed) {
+			sendFragment(true);
+			mClosed = true;
+			mBuffer = null;
+			mWriter.closeStream();
+		}
+	}
+
+	private void sendFragment(boolean last) {
+		byte[] payload;
+		if (mCount == mFragmentSize) {
+			// hand over the full buffer, the writer owns it from now on
+			payload = mBuffer;
+			mBuffer = new byte[mFragmentSize];
+		} else {
+			payload = Arrays.copyOf(mBuffer, mCount);
+		}
+		mCount = 0;
+
+		if (mText) {
+			mWriter.put(new WebSocketMessage.TextFragment(payload, last), false);
+		} else {
+			mWriter.put(new WebSocketMessage.BinaryFragment(payload, last), false);
+		}
+	}
+
+	private void ensureOpen() throws IOException {
+		if (mClosed) {
+			throw new IOException("message stream closed");
+		}
+	}
+}
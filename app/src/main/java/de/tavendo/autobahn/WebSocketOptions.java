@@ -18,6 +18,7 @@
 
 package de.tavendo.autobahn;
 
+import java.io.File;
 
 
 /**
@@ -36,6 +37,24 @@ public class WebSocketOptions {
    private boolean mValidateIncomingUtf8;
    private boolean mMaskClientFrames;
    private int mReconnectInterval;
+   private boolean mUseSocketChannel;
+   private PayloadBufferPool mPayloadBufferPool;
+   private boolean mDeliverMessageFragments;
+   private int mSpillThreshold;
+   private File mSpillDirectory;
+   private boolean mAdaptiveReceiveBuffer;
+   private boolean mDeliverMessageBatches;
+   private int mReceiveHighWatermarkMessages;
+   private int mReceiveLowWatermarkMessages;
+   private long mReceiveHighWatermarkBytes;
+   private long mReceiveLowWatermarkBytes;
+   private WebSocketReaderPool mReaderPool;
+   private int mMaxWriteBatchBytes;
+   private int mMaxWriteBatchFrames;
+   private int mOutgoingFragmentSize;
+   private long mSendHighWatermarkBytes;
+   private long mSendLowWatermarkBytes;
+   private boolean mBlockWhenSendBufferFull;
 
 
    /**
@@ -52,6 +71,24 @@ public class WebSocketOptions {
       mValidateIncomingUtf8 = true;
       mMaskClientFrames = true;
       mReconnectInterval = 0;  // no reconnection by default
+      mUseSocketChannel = false;
+      mPayloadBufferPool = null;
+      mDeliverMessageFragments = false;
+      mSpillThreshold = 0;
+      mSpillDirectory = null;
+      mAdaptiveReceiveBuffer = true;
+      mDeliverMessageBatches = false;
+      mReceiveHighWatermarkMessages = 0;
+      mReceiveLowWatermarkMessages = 0;
+      mReceiveHighWatermarkBytes = 0;
+      mReceiveLowWatermarkBytes = 0;
+      mReaderPool = null;
+      mMaxWriteBatchBytes = 64 * 1024;
+      mMaxWriteBatchFrames = 256;
+      mOutgoingFragmentSize = 128 * 1024;
+      mSendHighWatermarkBytes = 0;
+      mSendLowWatermarkBytes = 0;
+      mBlockWhenSendBufferFull = true;
    }
 
    /**
@@ -70,11 +107,31 @@ public class WebSocketOptions {
       mValidateIncomingUtf8 = other.mValidateIncomingUtf8;
       mMaskClientFrames = other.mMaskClientFrames;
       mReconnectInterval = other.mReconnectInterval;
+      mUseSocketChannel = other.mUseSocketChannel;
+      mPayloadBufferPool = other.mPayloadBufferPool;
+      mDeliverMessageFragments = other.mDeliverMessageFragments;
+      mSpillThreshold = other.mSpillThreshold;
+      mSpillDirectory = other.mSpillDirectory;
+      mAdaptiveReceiveBuffer = other.mAdaptiveReceiveBuffer;
+      mDeliverMessageBatches = other.mDeliverMessageBatches;
+      mReceiveHighWatermarkMessages = other.mReceiveHighWatermarkMessages;
+      mReceiveLowWatermarkMessages = other.mReceiveLowWatermarkMessages;
+      mReceiveHighWatermarkBytes = other.mReceiveHighWatermarkBytes;
+      mReceiveLowWatermarkBytes = other.mReceiveLowWatermarkBytes;
+      mReaderPool = other.mReaderPool;
+      mMaxWriteBatchBytes = other.mMaxWriteBatchBytes;
+      mMaxWriteBatchFrames = other.mMaxWriteBatchFrames;
+      mOutgoingFragmentSize = other.mOutgoingFragmentSize;
+      mSendHighWatermarkBytes = other.mSendHighWatermarkBytes;
+      mSendLowWatermarkBytes = other.mSendLowWatermarkBytes;
+      mBlockWhenSendBufferFull = other.mBlockWhenSendBufferFull;
    }
 
    /**
     * Receive text message as raw byte array with verified,
-    * but non-decoded UTF-8.
+    * but non-decoded UTF-8. Observers implementing
+    * WebSocketUtf8TextObserver get it as a lazily decoded
+    * Utf8CharSequence instead.
     *
     * DEFAULT: false
     *
@@ -270,4 +327,431 @@ public class WebSocketOptions {
    public int getReconnectInterval() {
 	   return mReconnectInterval;
    }
+
+   /**
+    * Controls whether non-TLS (ws) connections are opened through a
+    * SocketChannel. The reader then reads directly from the channel into
+    * its frame buffer. TLS (wss) connections always use the socket's
+    * streams, since SSLCertificateSocketFactory sockets have no channel.
+    *
+    * DEFAULT: false
+    *
+    * @param enabled   Set true to open ws connections through a SocketChannel.
+    */
+   public void setUseSocketChannel(boolean enabled) {
+      mUseSocketChannel = enabled;
+   }
+
+   /**
+    * Get use socket channel option.
+    *
+    * @return        True, iff ws connections are opened through a SocketChannel.
+    */
+   public boolean getUseSocketChannel() {
+      return mUseSocketChannel;
+   }
+
+   /**
+    * Set pool to receive binary and raw text message payloads into.
+    * Received payloads are then delivered as reference counted
+    * PayloadBuffer objects, which observers implementing
+    * WebSocketPooledMessageObserver must release when done. The same
+    * pool may be shared by several connections.
+    *
+    * DEFAULT: null (no pooling)
+    *
+    * @param pool      Payload buffer pool, or null to disable pooling.
+    */
+   public void setPayloadBufferPool(PayloadBufferPool pool) {
+      mPayloadBufferPool = pool;
+   }
+
+   /**
+    * Get payload buffer pool.
+    *
+    * @return        Payload buffer pool, or null when pooling is disabled.
+    */
+   public PayloadBufferPool getPayloadBufferPool() {
+      return mPayloadBufferPool;
+   }
+
+   /**
+    * Deliver data messages frame by frame as they are received, instead of
+    * reassembling them. The maximum message payload size then does not
+    * apply, only the maximum frame payload size. Requires the observer to
+    * implement WebSocketFragmentObserver.
+    *
+    * DEFAULT: false
+    *
+    * @param enabled   Set true to deliver message fragments.
+    */
+   public void setDeliverMessageFragments(boolean enabled) {
+      mDeliverMessageFragments = enabled;
+   }
+
+   /**
+    * Get message fragment delivery option.
+    *
+    * @return        True, iff data messages are delivered frame by frame.
+    */
+   public boolean getDeliverMessageFragments() {
+      return mDeliverMessageFragments;
+   }
+
+   /**
+    * Set size above which received binary messages are assembled in a
+    * temporary file instead of on the heap, and delivered memory mapped.
+    * Spilled messages are not limited by the maximum message payload size
+    * (but can't exceed 2GB). Requires the observer to implement
+    * WebSocketSpilledMessageObserver.
+    *
+    * DEFAULT: 0 (never spill)
+    *
+    * @param size      Spill threshold in octets, 0 to disable spilling.
+    */
+   public void setSpillThreshold(int size) {
+      if (size >= 0) {
+         mSpillThreshold = size;
+      }
+   }
+
+   /**
+    * Get spill threshold.
+    *
+    * @return        Spill threshold in octets, 0 when spilling is disabled.
+    */
+   public int getSpillThreshold() {
+      return mSpillThreshold;
+   }
+
+   /**
+    * Set directory for temporary files of spilled messages, i.e. the
+    * application's cache directory.
+    *
+    * DEFAULT: null (system temporary directory)
+    *
+    * @param directory Directory for temporary files.
+    */
+   public void setSpillDirectory(File directory) {
+      mSpillDirectory = directory;
+   }
+
+   /**
+    * Get directory for temporary files of spilled messages.
+    *
+    * @return        Directory, or null for system temporary directory.
+    */
+   public File getSpillDirectory() {
+      return mSpillDirectory;
+   }
+
+   /**
+    * Controls whether the receive buffer adapts to the sizes of frames
+    * received. It then starts at 4kB and holds a few typical frames, growing
+    * during bulk transfers and shrinking when only small frames arrive.
+    * Otherwise, a buffer for the maximum frame payload size is allocated
+    * up front.
+    *
+    * DEFAULT: true
+    *
+    * @param enabled   Set true to adapt receive buffer size.
+    */
+   public void setAdaptiveReceiveBuffer(boolean enabled) {
+      mAdaptiveReceiveBuffer = enabled;
+   }
+
+   /**
+    * Get adaptive receive buffer option.
+    *
+    * @return        True, iff the receive buffer size adapts to frame sizes.
+    */
+   public boolean getAdaptiveReceiveBuffer() {
+      return mAdaptiveReceiveBuffer;
+   }
+
+   /**
+    * Controls whether all messages parsed from a single socket read are
+    * handed to the foreground thread together, instead of one Handler
+    * message each. Observers implementing WebSocketBatchObserver then
+    * receive consecutive data messages in one onMessages() call, other
+    * observers get the usual per-message callbacks.
+    *
+    * DEFAULT: false
+    *
+    * @param enabled   Set true to deliver messages in batches.
+    */
+   public void setDeliverMessageBatches(boolean enabled) {
+      mDeliverMessageBatches = enabled;
+   }
+
+   /**
+    * Get batch delivery option.
+    *
+    * @return        True, iff messages are delivered in batches.
+    */
+   public boolean getDeliverMessageBatches() {
+      return mDeliverMessageBatches;
+   }
+
+   /**
+    * Set number of received, but not yet delivered data messages at which
+    * the reader stops reading from the socket, so that TCP flow control
+    * throttles the server. Reading resumes at the low watermark.
+    *
+    * DEFAULT: 0 (no limit)
+    *
+    * @param messages  Number of messages, or 0 for no limit.
+    */
+   public void setReceiveHighWatermarkMessages(int messages) {
+      if (messages >= 0) {
+         mReceiveHighWatermarkMessages = messages;
+      }
+   }
+
+   /**
+    * Get high watermark for undelivered messages.
+    *
+    * @return        Number of messages, or 0 for no limit.
+    */
+   public int getReceiveHighWatermarkMessages() {
+      return mReceiveHighWatermarkMessages;
+   }
+
+   /**
+    * Set number of undelivered data messages at (or below) which reading
+    * resumes after the high watermark was hit.
+    *
+    * DEFAULT: 0
+    *
+    * @param messages  Number of messages.
+    */
+   public void setReceiveLowWatermarkMessages(int messages) {
+      if (messages >= 0) {
+         mReceiveLowWatermarkMessages = messages;
+      }
+   }
+
+   /**
+    * Get low watermark for undelivered messages.
+    *
+    * @return        Number of messages.
+    */
+   public int getReceiveLowWatermarkMessages() {
+      return mReceiveLowWatermarkMessages;
+   }
+
+   /**
+    * Set payload size of received, but not yet delivered data messages at
+    * which the reader stops reading from the socket. Reading resumes at
+    * the low watermark.
+    *
+    * DEFAULT: 0 (no limit)
+    *
+    * @param bytes     Payload octets, or 0 for no limit.
+    */
+   public void setReceiveHighWatermarkBytes(long bytes) {
+      if (bytes >= 0) {
+         mReceiveHighWatermarkBytes = bytes;
+      }
+   }
+
+   /**
+    * Get high watermark for undelivered payload.
+    *
+    * @return        Payload octets, or 0 for no limit.
+    */
+   public long getReceiveHighWatermarkBytes() {
+      return mReceiveHighWatermarkBytes;
+   }
+
+   /**
+    * Set payload size of undelivered data messages at (or below) which
+    * reading resumes after the high watermark was hit.
+    *
+    * DEFAULT: 0
+    *
+    * @param bytes     Payload octets.
+    */
+   public void setReceiveLowWatermarkBytes(long bytes) {
+      if (bytes >= 0) {
+         mReceiveLowWatermarkBytes = bytes;
+      }
+   }
+
+   /**
+    * Get low watermark for undelivered payload.
+    *
+    * @return        Payload octets.
+    */
+   public long getReceiveLowWatermarkBytes() {
+      return mReceiveLowWatermarkBytes;
+   }
+
+   /**
+    * Set reader pool to receive on, instead of a reader thread of the
+    * connection's own. The connection then uses a non-blocking socket
+    * channel. Secure (wss://) connections ignore this option, since
+    * their sockets provide no channel.
+    *
+    * DEFAULT: null
+    *
+    * @param pool      Reader pool (may be shared by connections), or null.
+    */
+   public void setReaderPool(WebSocketReaderPool pool) {
+      mReaderPool = pool;
+   }
+
+   /**
+    * Get reader pool.
+    *
+    * @return        Reader pool, or null for a reader thread per connection.
+    */
+   public WebSocketReaderPool getReaderPool() {
+      return mReaderPool;
+   }
+
+   /**
+    * Set the number of octets after which the writer flushes frames
+    * coalesced from queued messages to the socket. Messages sent in a
+    * burst are thus written with few socket writes (and TLS records).
+    *
+    * DEFAULT: 64kB
+    *
+    * @param size      Maximum octets per write (a single frame may exceed this).
+    */
+   public void setMaxWriteBatchBytes(int size) {
+      if (size > 0) {
+         mMaxWriteBatchBytes = size;
+      }
+   }
+
+   /**
+    * Get maximum octets coalesced into one socket write.
+    *
+    * @return        Maximum octets per write.
+    */
+   public int getMaxWriteBatchBytes() {
+      return mMaxWriteBatchBytes;
+   }
+
+   /**
+    * Set the number of frames after which the writer flushes frames
+    * coalesced from queued messages to the socket. Set 1 to write
+    * every frame on its own.
+    *
+    * DEFAULT: 256
+    *
+    * @param frames    Maximum frames per write.
+    */
+   public void setMaxWriteBatchFrames(int frames) {
+      if (frames > 0) {
+         mMaxWriteBatchFrames = frames;
+      }
+   }
+
+   /**
+    * Get maximum frames coalesced into one socket write.
+    *
+    * @return        Maximum frames per write.
+    */
+   public int getMaxWriteBatchFrames() {
+      return mMaxWriteBatchFrames;
+   }
+
+   /**
+    * Set maximum payload size of frames sent. Larger messages are
+    * sent as fragmented message, and message streams send fragments
+    * of (at most) this size.
+    *
+    * DEFAULT: 128kB
+    *
+    * @param size      Maximum frame payload size in octets.
+    */
+   public void setOutgoingFragmentSize(int size) {
+      if (size > 0) {
+         mOutgoingFragmentSize = size;
+      }
+   }
+
+   /**
+    * Get maximum payload size of frames sent.
+    *
+    * @return        Maximum frame payload size in octets.
+    */
+   public int getOutgoingFragmentSize() {
+      return mOutgoingFragmentSize;
+   }
+
+   /**
+    * Set payload size of sent, but not yet written data messages at which
+    * the send buffer is full. Sending then blocks or is rejected, see
+    * setBlockWhenSendBufferFull(), until the low watermark is reached. A
+    * single message larger than this is accepted while nothing is queued.
+    *
+    * DEFAULT: 0 (no limit)
+    *
+    * @param bytes     Payload octets, or 0 for no limit.
+    */
+   public void setSendHighWatermarkBytes(long bytes) {
+      if (bytes >= 0) {
+         mSendHighWatermarkBytes = bytes;
+      }
+   }
+
+   /**
+    * Get high watermark for queued outgoing payload.
+    *
+    * @return        Payload octets, or 0 for no limit.
+    */
+   public long getSendHighWatermarkBytes() {
+      return mSendHighWatermarkBytes;
+   }
+
+   /**
+    * Set payload size of queued outgoing data messages at (or below) which
+    * the send buffer is writable again after the high watermark was hit.
+    *
+    * DEFAULT: 0
+    *
+    * @param bytes     Payload octets.
+    */
+   public void setSendLowWatermarkBytes(long bytes) {
+      if (bytes >= 0) {
+         mSendLowWatermarkBytes = bytes;
+      }
+   }
+
+   /**
+    * Get low watermark for queued outgoing payload.
+    *
+    * @return        Payload octets.
+    */
+   public long getSendLowWatermarkBytes() {
+      return mSendLowWatermarkBytes;
+   }
+
+   /**
+    * Block senders while the send buffer is full. When disabled, sending
+    * throws IllegalStateException instead. The offer methods of
+    * WebSocketConnection never block nor throw, but return false.
+    * Senders on the UI thread should rather use those, or
+    * WebSocketWritableObserver, than block. Sends from send callbacks,
+    * which run on the writer thread, never block but are queued.
+    *
+    * DEFAULT: true
+    *
+    * @param enabled   True to block, false to reject.
+    */
+   public void setBlockWhenSendBufferFull(boolean enabled) {
+      mBlockWhenSendBufferFull = enabled;
+   }
+
+   /**
+    * Get whether senders block while the send buffer is full.
+    *
+    * @return        True, iff blocking.
+    */
+   public boolean getBlockWhenSendBufferFull() {
+      return mBlockWhenSendBufferFull;
+   }
 }
@@ -18,17 +18,30 @@
 
 package de.tavendo.autobahn;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.net.Socket;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
-import android.util.Pair;
 import de.tavendo.autobahn.WebSocketMessage.WebSocketCloseCode;
 
 /**
@@ -41,6 +54,20 @@ import de.tavendo.autobahn.WebSocketMessage.WebSocketCloseCode;
 public class WebSocketReader extends Thread {
 	private static final String TAG = WebSocketReader.class.getCanonicalName();
 
+	private static final int MAX_FRAME_HEADER_LENGTH = 14;
+
+	/// Smallest application buffer used with adaptive buffer sizing.
+	private static final int MIN_BUFFER_SIZE = 4096;
+
+	/// Number of frames after which the application buffer size is reconsidered.
+	private static final int FRAME_SIZE_SAMPLES = 64;
+
+	/// Number of frames fitting a quarter of the application buffer before it is shrunk.
+	private static final int SHRINK_DELAY_FRAMES = 4 * FRAME_SIZE_SAMPLES;
+
+	/// Source of reader ids, which tag the messages posted to master.
+	private static final AtomicInteger NEXT_READER_ID = new AtomicInteger(0);
+
 	private static enum ReaderState { 
 		STATE_CLOSED,
 		STATE_CONNECTING,
@@ -50,23 +77,63 @@ public class WebSocketReader extends Thread {
 
 	private final Handler mWebSocketConnectionHandler;
 	private final Socket mSocket;
+	private final SocketChannel mSocketChannel;
 	private InputStream mInputStream;
 	private final WebSocketOptions mWebSocketOptions;
 
 	private volatile boolean mStopped = false;
 
 
-	private final byte[] mNetworkBuffer;
-	private final ByteBuffer mApplicationBuffer;
+	private ByteBuffer mApplicationBuffer;
+	private int mReadPosition;
+
+	private final int mMaxBufferSize;
+	private final int[] mFrameSizeHistogram = new int[32];
+	private int mFrameSizeSamples = 0;
+	private int mTargetBufferSize;
+	private int mSmallFrames = 0;
+	private volatile int mReadBufferSize = 0;
+	private volatile int mTypicalFrameSize = 0;
 	private NoCopyByteArrayOutputStream mMessagePayload;
+	private final PayloadBufferPool mPayloadBufferPool;
+	private PayloadBuffer mPooledPayload;
 
 	private ReaderState mState;
 
 	private boolean mInsideMessage = false;
 	private int mMessageOpcode;
 
-	private WebSocketFrameHeader mFrameHeader;
+	private final WebSocketFrameHeader mFrameHeader;
+	private boolean mInsideFrame = false;
+
+	private int mHandshakeScanOffset = 0;
+	private int mHandshakeLineStart = 0;
+	private int mStatusCode = 0;
+	private String mStatusMessage = null;
+	private final Map<String, String> mResponseHeaders = new LinkedHashMap<String, String>();
 	private Utf8Validator mUTF8Validator = new Utf8Validator();
+	private final Utf8Decoder mUtf8Decoder;
+
+	private File mSpillFile;
+	private RandomAccessFile mSpillAccess;
+	private FileChannel mSpillChannel;
+
+	private List<WebSocketMessage.Message> mBatch;
+
+	private final int mHighWatermarkMessages;
+	private final int mLowWatermarkMessages;
+	private final long mHighWatermarkBytes;
+	private final long mLowWatermarkBytes;
+	private final AtomicInteger mQueuedMessages = new AtomicInteger(0);
+	private final AtomicLong mQueuedBytes = new AtomicLong(0);
+	private final Object mFlowLock = new Object();
+	private volatile boolean mReadPaused = false;
+
+	private final int mReaderId = NEXT_READER_ID.incrementAndGet();
+	private final WebSocketReaderPool mReaderPool;
+	volatile WebSocketReaderPool.SelectorThread mSelectorThread;
+	SelectionKey mSelectionKey;
+	private boolean mFinished = false;
 
 
 
@@ -83,13 +150,35 @@ public class WebSocketReader extends Thread {
 		this.mWebSocketConnectionHandler = master;
 
 		this.mSocket = socket;
+		this.mSocketChannel = socket.getChannel();
 		this.mWebSocketOptions = options;
 
-		this.mNetworkBuffer = new byte[4096];
-		this.mApplicationBuffer = ByteBuffer.allocateDirect(options.getMaxFramePayloadSize() + 14);
+		// a non-blocking channel is served by the reader pool instead of this thread
+		this.mReaderPool = (mSocketChannel != null && !mSocketChannel.isBlocking()) ? options.getReaderPool() : null;
+
+		// With adaptive sizing, the application buffer starts small and follows
+		// the frame sizes seen, otherwise it can hold the largest frame up front.
+		this.mMaxBufferSize = options.getMaxFramePayloadSize() + MAX_FRAME_HEADER_LENGTH;
+		if (options.getAdaptiveReceiveBuffer()) {
+			this.mTargetBufferSize = Math.min(MIN_BUFFER_SIZE, mMaxBufferSize);
+		} else {
+			this.mTargetBufferSize = mMaxBufferSize;
+		}
+		this.mApplicationBuffer = allocateApplicationBuffer(mTargetBufferSize);
 		this.mMessagePayload = new NoCopyByteArrayOutputStream(options.getMaxMessagePayloadSize());
+		this.mPayloadBufferPool = options.getPayloadBufferPool();
+		this.mPooledPayload = null;
+		this.mUtf8Decoder = new Utf8Decoder(Math.min(options.getMaxMessagePayloadSize(), 64 * 1024));
+
+		this.mBatch = options.getDeliverMessageBatches() ? new ArrayList<WebSocketMessage.Message>() : null;
 
-		this.mFrameHeader = null;
+		this.mHighWatermarkMessages = options.getReceiveHighWatermarkMessages();
+		this.mLowWatermarkMessages = Math.min(options.getReceiveLowWatermarkMessages(), mHighWatermarkMessages);
+		this.mHighWatermarkBytes = options.getReceiveHighWatermarkBytes();
+		this.mLowWatermarkBytes = Math.min(options.getReceiveLowWatermarkBytes(), mHighWatermarkBytes);
+
+		this.mReadPosition = 0;
+		this.mFrameHeader = new WebSocketFrameHeader();
 		this.mState = ReaderState.STATE_CONNECTING;
 
 		Log.d(TAG, "WebSocket reader created.");
@@ -103,43 +192,434 @@ public class WebSocketReader extends Thread {
 
 		mStopped = true;
 
+		// wake up reader paused by flow control
+		synchronized (mFlowLock) {
+			mFlowLock.notifyAll();
+		}
+
+		if (mReaderPool != null) {
+			mReaderPool.cancel(this);
+		}
+
 		Log.d(TAG, "quit");
 	}
 
 
 	/**
 	 * Notify the master (foreground thread) of WebSockets message received
-	 * and unwrapped.
+	 * and unwrapped. With batch delivery, the message is held back until
+	 * the current read has been consumed.
 	 *
 	 * @param message       Message to send to master.
 	 */
 	protected void notify(Object message) {
 
+		int length = payloadLength(message);
+		if (length >= 0) {
+			mQueuedMessages.incrementAndGet();
+			mQueuedBytes.addAndGet(length);
+		}
+
+		if (mBatch != null) {
+			mBatch.add((WebSocketMessage.Message) message);
+			return;
+		}
+
 		Message msg = mWebSocketConnectionHandler.obtainMessage();
 		msg.obj = message;
+		msg.arg1 = mReaderId;
+		mWebSocketConnectionHandler.sendMessage(msg);
+	}
+
+
+	/**
+	 * Check whether a message was posted to master by this reader, rather
+	 * than by the writer or a reader replaced meanwhile.
+	 *
+	 * @param msg           Message received by master.
+	 * @return              True, iff posted by this reader.
+	 */
+	boolean isPostedBy(Message msg) {
+		return msg.arg1 == mReaderId;
+	}
+
+
+	/**
+	 * Called by master once it has dispatched a message posted by this
+	 * reader. Resumes reading when paused and the low watermarks are reached.
+	 *
+	 * @param message       Message (or message batch) dispatched.
+	 */
+	void delivered(Object message) {
+
+		if (message instanceof WebSocketMessage.MessageBatch) {
+			for (WebSocketMessage.Message m : ((WebSocketMessage.MessageBatch) message).mMessages) {
+				delivered(m);
+			}
+			return;
+		}
+
+		int length = payloadLength(message);
+		if (length >= 0) {
+			mQueuedMessages.decrementAndGet();
+			mQueuedBytes.addAndGet(-length);
+
+			if (mReadPaused && isBelowLowWatermark()) {
+				if (mReaderPool != null) {
+					mReadPaused = false;
+					mReaderPool.resume(this);
+				} else {
+					synchronized (mFlowLock) {
+						mFlowLock.notifyAll();
+					}
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Get number of data messages received, but not yet delivered by master.
+	 *
+	 * @return           Number of messages.
+	 */
+	public int getQueuedMessageCount() {
+		return mQueuedMessages.get();
+	}
+
+
+	/**
+	 * Get payload size of data messages received, but not yet delivered by master.
+	 *
+	 * @return           Payload octets (text decoded to strings counts two per char).
+	 */
+	public long getQueuedBytes() {
+		return mQueuedBytes.get();
+	}
+
+
+	/**
+	 * Check if a message is a data message, i.e. one delivered to the
+	 * observer (as opposed to control and lifecycle messages).
+	 */
+	static boolean isDataMessage(Object message) {
+		return payloadLength(message) >= 0;
+	}
+
+
+	/**
+	 * Payload size accounted for flow control, or -1 for messages which
+	 * are no data messages. Memory mapped payloads do not live on the
+	 * heap and count as empty.
+	 */
+	private static int payloadLength(Object message) {
+		if (message instanceof WebSocketMessage.TextMessage) {
+			String payload = ((WebSocketMessage.TextMessage) message).mPayload;
+			return payload != null ? 2 * payload.length() : 0;
+		} else if (message instanceof WebSocketMessage.RawTextMessage) {
+			byte[] payload = ((WebSocketMessage.RawTextMessage) message).mPayload;
+			return payload != null ? payload.length : 0;
+		} else if (message instanceof WebSocketMessage.BinaryMessage) {
+			byte[] payload = ((WebSocketMessage.BinaryMessage) message).mPayload;
+			return payload != null ? payload.length : 0;
+		} else if (message instanceof WebSocketMessage.PooledRawTextMessage) {
+			return ((WebSocketMessage.PooledRawTextMessage) message).mPayload.getLength();
+		} else if (message instanceof WebSocketMessage.PooledBinaryMessage) {
+			return ((WebSocketMessage.PooledBinaryMessage) message).mPayload.getLength();
+		} else if (message instanceof WebSocketMessage.TextFragment) {
+			return ((WebSocketMessage.TextFragment) message).mPayload.length;
+		} else if (message instanceof WebSocketMessage.BinaryFragment) {
+			return ((WebSocketMessage.BinaryFragment) message).mPayload.length;
+		} else if (message instanceof WebSocketMessage.MappedBinaryMessage) {
+			return 0;
+		} else {
+			return -1;
+		}
+	}
+
+
+	private boolean isAboveHighWatermark() {
+		return (mHighWatermarkMessages > 0 && mQueuedMessages.get() >= mHighWatermarkMessages)
+				|| (mHighWatermarkBytes > 0 && mQueuedBytes.get() >= mHighWatermarkBytes);
+	}
+
+
+	private boolean isBelowLowWatermark() {
+		return (mHighWatermarkMessages == 0 || mQueuedMessages.get() <= mLowWatermarkMessages)
+				&& (mHighWatermarkBytes == 0 || mQueuedBytes.get() <= mLowWatermarkBytes);
+	}
+
+
+	/**
+	 * Block while the high watermark of undelivered messages is exceeded,
+	 * until master has caught up to the low watermark (or we are stopped).
+	 * Not reading from the socket meanwhile lets TCP throttle the server.
+	 */
+	private void awaitDeliveryCapacity() {
+
+		if (!isAboveHighWatermark()) {
+			return;
+		}
+
+		Log.d(TAG, "receive high watermark reached, pausing reads");
+
+		synchronized (mFlowLock) {
+			mReadPaused = true;
+			try {
+				while (!mStopped && !isBelowLowWatermark()) {
+					mFlowLock.wait();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				mStopped = true;
+			} finally {
+				mReadPaused = false;
+			}
+		}
+
+		Log.d(TAG, "receive low watermark reached, resuming reads");
+	}
+
+
+	/**
+	 * Pooled counterpart of awaitDeliveryCapacity(), called by the reader
+	 * pool before waiting for the channel to become readable. Instead of
+	 * blocking, the pool stops selecting the channel for reading until
+	 * master has caught up (see delivered()).
+	 *
+	 * @return           True, iff reading is paused.
+	 */
+	boolean pauseIfAboveHighWatermark() {
+
+		if (!isAboveHighWatermark()) {
+			return false;
+		}
+
+		mReadPaused = true;
+
+		// master may have caught up meanwhile and missed the pause
+		if (isBelowLowWatermark()) {
+			mReadPaused = false;
+			return false;
+		}
+		return true;
+	}
+
+
+	/**
+	 * Send messages held back for batch delivery to master, a single
+	 * message as is, several as one MessageBatch.
+	 */
+	private void flushBatch() {
+
+		if (mBatch == null || mBatch.isEmpty()) {
+			return;
+		}
+
+		Message msg = mWebSocketConnectionHandler.obtainMessage();
+		if (mBatch.size() == 1) {
+			msg.obj = mBatch.get(0);
+			mBatch.clear();
+		} else {
+			msg.obj = new WebSocketMessage.MessageBatch(mBatch);
+			mBatch = new ArrayList<WebSocketMessage.Message>();
+		}
+		msg.arg1 = mReaderId;
 		mWebSocketConnectionHandler.sendMessage(msg);
 	}
 
 
+	/**
+	 * Number of buffered octets not yet consumed. Unconsumed data lives
+	 * between mReadPosition and the position of the application buffer.
+	 */
+	private int available() {
+		return mApplicationBuffer.position() - mReadPosition;
+	}
+
+
+	/**
+	 * Mark octets at the read position as consumed. When everything
+	 * buffered has been consumed, both cursors rewind to the start
+	 * of the buffer without moving any data.
+	 *
+	 * @param length     Number of octets consumed.
+	 */
+	private void consume(int length) {
+		mReadPosition += length;
+		if (mReadPosition == mApplicationBuffer.position()) {
+			mApplicationBuffer.clear();
+			mReadPosition = 0;
+		}
+	}
+
+
+	/**
+	 * Allocate application buffer. Sockets created from a SocketChannel are read
+	 * straight into a direct buffer, all others (i.e. SSLCertificateSocketFactory)
+	 * are read into the heap buffer's backing array. Either way, received octets
+	 * are not copied before framing.
+	 */
+	private ByteBuffer allocateApplicationBuffer(int size) {
+		mReadBufferSize = size;
+		if (mSocketChannel != null) {
+			return ByteBuffer.allocateDirect(size);
+		} else {
+			return ByteBuffer.allocate(size);
+		}
+	}
+
+
+	/**
+	 * Get current size of the application buffer socket data is read into.
+	 *
+	 * @return           Buffer size in octets.
+	 */
+	public int getReadBufferSize() {
+		return mReadBufferSize;
+	}
+
+
+	/**
+	 * Get typical size of recently received frames (90th percentile, rounded
+	 * up to a power of two), as used for adaptive buffer sizing.
+	 *
+	 * @return           Typical frame size in octets, 0 before enough frames were seen.
+	 */
+	public int getTypicalFrameSize() {
+		return mTypicalFrameSize;
+	}
+
+
+	/**
+	 * Record size of a received frame. Every FRAME_SIZE_SAMPLES frames, the
+	 * target buffer size is set to hold a few typical frames, and the
+	 * histogram decays so that it follows changes in traffic. Frames too
+	 * large for a buffer shrunk to a quarter keep the buffer from shrinking
+	 * for a while, so a rare large frame does not reallocate it every time.
+	 *
+	 * @param size       Total frame size including header.
+	 */
+	private void recordFrameSize(int size) {
+		if (!mWebSocketOptions.getAdaptiveReceiveBuffer()) {
+			return;
+		}
+
+		if (size > mApplicationBuffer.capacity() / 4) {
+			mSmallFrames = 0;
+		} else if (mSmallFrames < SHRINK_DELAY_FRAMES) {
+			++mSmallFrames;
+		}
+
+		++mFrameSizeHistogram[32 - Integer.numberOfLeadingZeros(Math.max(size - 1, 0))];
+		if (++mFrameSizeSamples < FRAME_SIZE_SAMPLES) {
+			return;
+		}
+
+		int total = 0;
+		for (int i = 0; i < mFrameSizeHistogram.length; ++i) {
+			total += mFrameSizeHistogram[i];
+		}
+
+		int bucket = 0;
+		for (int seen = 0; bucket < mFrameSizeHistogram.length; ++bucket) {
+			seen += mFrameSizeHistogram[bucket];
+			if (seen * 10 >= total * 9) {
+				break;
+			}
+		}
+
+		for (int i = 0; i < mFrameSizeHistogram.length; ++i) {
+			mFrameSizeHistogram[i] >>= 1;
+		}
+		mFrameSizeSamples = 0;
+
+		long typical = 1L << bucket;
+		mTypicalFrameSize = (int) Math.min(typical, Integer.MAX_VALUE);
+		mTargetBufferSize = (int) Math.max(Math.min(typical * 4, mMaxBufferSize), Math.min(MIN_BUFFER_SIZE, mMaxBufferSize));
+	}
+
+
+	/**
+	 * Prepare application buffer for the next socket read. The buffer is
+	 * replaced when it can't hold the frame being assembled (or the handshake
+	 * filled it), or when it is four times larger than the target size and has
+	 * been for SHRINK_DELAY_FRAMES frames. Otherwise it is only compacted when
+	 * needed.
+	 */
+	private void prepareApplicationBuffer() {
+		int capacity = mApplicationBuffer.capacity();
+		int needed = mInsideFrame ? mFrameHeader.getTotalLength() : MAX_FRAME_HEADER_LENGTH;
+
+		int size = capacity;
+		if (needed > capacity) {
+			size = Math.max(needed, Math.min(mTargetBufferSize, mMaxBufferSize));
+		} else if (!mApplicationBuffer.hasRemaining() && mReadPosition == 0 && capacity < mMaxBufferSize) {
+			size = (int) Math.min(2L * capacity, mMaxBufferSize);
+		} else if (mTargetBufferSize > capacity
+				|| (mTargetBufferSize <= capacity / 4 && mSmallFrames >= SHRINK_DELAY_FRAMES && available() <= mTargetBufferSize)) {
+			size = Math.max(mTargetBufferSize, needed);
+		}
+
+		if (size == capacity) {
+			compactIfNeeded();
+			return;
+		}
+
+		ByteBuffer buffer = allocateApplicationBuffer(size);
+		int writePosition = mApplicationBuffer.position();
+		mApplicationBuffer.limit(writePosition);
+		mApplicationBuffer.position(mReadPosition);
+		buffer.put(mApplicationBuffer);
+
+		mApplicationBuffer = buffer;
+		mReadPosition = 0;
+		mSmallFrames = 0;
+	}
+
+
+	/**
+	 * Move unconsumed data to the start of the application buffer, but only
+	 * when the space left behind the write position cannot hold the rest of
+	 * the frame (or frame header) currently being assembled.
+	 */
+	private void compactIfNeeded() {
+		if (mReadPosition == 0) {
+			return;
+		}
+
+		int needed = mInsideFrame ? mFrameHeader.getTotalLength() : MAX_FRAME_HEADER_LENGTH;
+		if (mApplicationBuffer.hasRemaining() && mApplicationBuffer.capacity() - mReadPosition >= needed) {
+			return;
+		}
+
+		int writePosition = mApplicationBuffer.position();
+		mApplicationBuffer.limit(writePosition);
+		mApplicationBuffer.position(mReadPosition);
+		mApplicationBuffer.compact();
+		mReadPosition = 0;
+	}
+
+
 	/**
 	 * Process incoming WebSockets data (after handshake).
 	 */
 	private boolean processData() throws Exception {
 
 		// outside frame?
-		if (mFrameHeader == null) {
+		if (!mInsideFrame) {
 
 			// need at least 2 bytes from WS frame header to start processing
-			if (mApplicationBuffer.position() >= 2) {
+			if (available() >= 2) {
 
-				byte b0 = mApplicationBuffer.get(0);
-				boolean fin = (b0 & 0x80) != 0;
-				int rsv = (b0 & 0x70) >> 4;
-				int opcode = b0 & 0x0f;
+				// first two octets in one (big endian) read
+				int b01 = mApplicationBuffer.getShort(mReadPosition) & 0xffff;
+				boolean fin = (b01 & 0x8000) != 0;
+				int rsv = (b01 & 0x7000) >> 12;
+				int opcode = (b01 & 0x0f00) >> 8;
 
-				byte b1 = mApplicationBuffer.get(1);
-				boolean masked = (b1 & 0x80) != 0;
-				int payload_len1 = b1 & 0x7f;
+				boolean masked = (b01 & 0x80) != 0;
+				int payload_len1 = b01 & 0x7f;
 
 				// now check protocol compliance
 
@@ -194,29 +674,22 @@ public class WebSocketReader extends Thread {
 				}
 
 				// continue when complete frame header is available
-				if (mApplicationBuffer.position() >= header_len) {
+				if (available() >= header_len) {
 
 					// determine frame payload length
-					int i = 2;
+					int i = mReadPosition + 2;
 					long payload_len = 0;
 					if (payload_len1 == 126) {
-						payload_len = ((0xff & mApplicationBuffer.get(i)) << 8) | (0xff & mApplicationBuffer.get(i+1));
+						payload_len = mApplicationBuffer.getShort(i) & 0xffff;
 						if (payload_len < 126) {
 							throw new WebSocketException("invalid data frame length (not using minimal length encoding)");
 						}
 						i += 2;
 					} else if (payload_len1 == 127) {
-						if ((0x80 & mApplicationBuffer.get(i+0)) != 0) {
+						payload_len = mApplicationBuffer.getLong(i);
+						if (payload_len < 0) {
 							throw new WebSocketException("invalid data frame length (> 2^63)");
 						}
-						payload_len = ((0xff & mApplicationBuffer.get(i+0)) << 56) |
-								((0xff & mApplicationBuffer.get(i+1)) << 48) |
-								((0xff & mApplicationBuffer.get(i+2)) << 40) |
-								((0xff & mApplicationBuffer.get(i+3)) << 32) |
-								((0xff & mApplicationBuffer.get(i+4)) << 24) |
-								((0xff & mApplicationBuffer.get(i+5)) << 16) |
-								((0xff & mApplicationBuffer.get(i+6)) <<  8) |
-								((0xff & mApplicationBuffer.get(i+7))      );
 						if (payload_len < 65536) {
 							throw new WebSocketException("invalid data frame length (not using minimal length encoding)");
 						}
@@ -230,8 +703,8 @@ public class WebSocketReader extends Thread {
 						throw new WebSocketException("frame payload too large");
 					}
 
-					// save frame header metadata
-					mFrameHeader = new WebSocketFrameHeader();
+					// save frame header metadata (header object is reused for all frames)
+					mInsideFrame = true;
 					mFrameHeader.setOpcode(opcode);
 					mFrameHeader.setFin(fin);
 					mFrameHeader.setReserved(rsv);
@@ -239,20 +712,16 @@ public class WebSocketReader extends Thread {
 					mFrameHeader.setHeaderLength(header_len);
 					mFrameHeader.setTotalLen(mFrameHeader.getHeaderLength() + mFrameHeader.getPayloadLength());
 
+					mFrameHeader.setMasked(masked);
 					if (masked) {
-						byte[] mask = new byte[4];
-						for (int j = 0; j < 4; ++j) {
-							mask[i] = (byte) (0xff & mApplicationBuffer.get(i + j));
-						}
-						mFrameHeader.setMask(mask);
-
-						i += 4;						
+						mFrameHeader.setMask(mApplicationBuffer.getInt(i));
+						i += 4;
 					} else {
-						mFrameHeader.setMask(null);
+						mFrameHeader.setMask(0);
 					}
 
 					// continue processing when payload empty or completely buffered
-					return mFrameHeader.getPayloadLength() == 0 || mApplicationBuffer.position() >= mFrameHeader.getTotalLength();
+					return mFrameHeader.getPayloadLength() == 0 || available() >= mFrameHeader.getTotalLength();
 
 				} else {
 
@@ -272,19 +741,32 @@ public class WebSocketReader extends Thread {
 			// within frame
 
 			// see if we buffered complete frame
-			if (mApplicationBuffer.position() >= mFrameHeader.getTotalLength()) {
+			if (available() >= mFrameHeader.getTotalLength()) {
+
+				// data frames received into a pooled buffer or decoded to a String
+				// are read straight from the application buffer (consume() only
+				// moves cursors)
+				int payloadPosition = mReadPosition + mFrameHeader.getHeaderLength();
+				boolean dataFrame = mFrameHeader.getOpcode() <= 7;
+				int messageOpcode = mInsideMessage ? mMessageOpcode : mFrameHeader.getOpcode();
+				boolean fragments = dataFrame && mWebSocketOptions.getDeliverMessageFragments();
+				boolean decoded = dataFrame && !fragments && messageOpcode == 1
+						&& mWebSocketOptions.getValidateIncomingUtf8() && !mWebSocketOptions.getReceiveTextMessagesRaw();
+				boolean spill = dataFrame && !fragments && messageOpcode == 2 && mWebSocketOptions.getSpillThreshold() > 0
+						&& (mSpillChannel != null || bufferedMessageLength() + mFrameHeader.getPayloadLength() > mWebSocketOptions.getSpillThreshold());
+				boolean pooled = dataFrame && !fragments && !decoded && !spill && mPayloadBufferPool != null;
+				boolean single = dataFrame && !fragments && !decoded && !spill && !pooled && !mInsideMessage && mFrameHeader.isFin();
 
 				// cut out frame payload
 				byte[] framePayload = null;
-				int oldPosition = mApplicationBuffer.position();
-				if (mFrameHeader.getPayloadLength() > 0) {
+				if (mFrameHeader.getPayloadLength() > 0 && !pooled && !decoded && !spill) {
+					int oldPosition = mApplicationBuffer.position();
 					framePayload = new byte[mFrameHeader.getPayloadLength()];
-					mApplicationBuffer.position(mFrameHeader.getHeaderLength());
+					mApplicationBuffer.position(mReadPosition + mFrameHeader.getHeaderLength());
 					mApplicationBuffer.get(framePayload, 0, (int) mFrameHeader.getPayloadLength());
+					mApplicationBuffer.position(oldPosition);
 				}
-				mApplicationBuffer.position(mFrameHeader.getTotalLength());
-				mApplicationBuffer.limit(oldPosition);
-				mApplicationBuffer.compact();
+				consume(mFrameHeader.getTotalLength());
 
 				if (mFrameHeader.getOpcode() > 7) {
 					// control frame
@@ -337,6 +819,12 @@ public class WebSocketReader extends Thread {
 						throw new Exception("logic error");
 					}
 
+				} else if (single) {
+					// message in one frame - the frame payload cut out above is
+					// exactly the message payload, so hand it on as is
+
+					deliverSingleFrameMessage(framePayload != null ? framePayload : new byte[0]);
+
 				} else {
 					// message frame
 
@@ -347,9 +835,45 @@ public class WebSocketReader extends Thread {
 						if (mMessageOpcode == 1 && mWebSocketOptions.getValidateIncomingUtf8()) {
 							mUTF8Validator.reset();
 						}
+						if (decoded) {
+							mUtf8Decoder.reset();
+						}
 					}
 
-					if (framePayload != null) {
+					if (fragments) {
+
+						// validate incoming UTF-8
+						if (mMessageOpcode == 1 && mWebSocketOptions.getValidateIncomingUtf8() && framePayload != null && !mUTF8Validator.validate(framePayload)) {
+							throw new WebSocketException("invalid UTF-8 in text message payload");
+						}
+
+					} else if (spill) {
+
+						// append frame payload to temporary file
+						spillPayload(payloadPosition, mFrameHeader.getPayloadLength());
+
+					} else if (decoded) {
+
+						if (mFrameHeader.getPayloadLength() > 0) {
+
+							// immediately bail out on message too large
+							if (mUtf8Decoder.position() + mFrameHeader.getPayloadLength() > mWebSocketOptions.getMaxMessagePayloadSize()) {
+								throw new WebSocketException("message payload too large");
+							}
+
+							// validate and decode incoming UTF-8 in one pass
+							if (!mUtf8Decoder.decode(mApplicationBuffer, payloadPosition, mFrameHeader.getPayloadLength())) {
+								throw new WebSocketException("invalid UTF-8 in text message payload");
+							}
+						}
+
+					} else if (pooled) {
+
+						if (mFrameHeader.getPayloadLength() > 0) {
+							appendPooledPayload(payloadPosition, mFrameHeader.getPayloadLength());
+						}
+
+					} else if (framePayload != null) {
 
 						// immediately bail out on message too large
 						if (mMessagePayload.size() + framePayload.length > mWebSocketOptions.getMaxMessagePayloadSize()) {
@@ -366,7 +890,49 @@ public class WebSocketReader extends Thread {
 					}
 
 					// on final frame ..
-					if (mFrameHeader.isFin()) {
+					if (fragments) {
+
+						if (framePayload == null) {
+							framePayload = new byte[0];
+						}
+
+						if (mFrameHeader.isFin()) {
+
+							// verify that UTF-8 ends on codepoint
+							if (mMessageOpcode == 1 && mWebSocketOptions.getValidateIncomingUtf8() && !mUTF8Validator.isValid()) {
+								throw new WebSocketException("UTF-8 text message payload ended within Unicode code point");
+							}
+
+							mInsideMessage = false;
+						}
+
+						// dispatch WS message frame
+						if (mMessageOpcode == 1) {
+							onTextFragment(framePayload, mFrameHeader.isFin());
+						} else {
+							onBinaryFragment(framePayload, mFrameHeader.isFin());
+						}
+
+					} else if (mFrameHeader.isFin() && spill) {
+
+						deliverSpilledPayload();
+
+					} else if (mFrameHeader.isFin() && decoded) {
+
+						// verify that UTF-8 ends on codepoint
+						if (!mUtf8Decoder.isValid()) {
+							throw new WebSocketException("UTF-8 text message payload ended within Unicode code point");
+						}
+
+						// ok, message completed - dispatch WS text message as Java String
+						mInsideMessage = false;
+						onTextMessage(mUtf8Decoder.toString());
+
+					} else if (mFrameHeader.isFin() && pooled) {
+
+						deliverPooledPayload();
+
+					} else if (mFrameHeader.isFin()) {
 
 						if (mMessageOpcode == 1) {
 
@@ -406,10 +972,11 @@ public class WebSocketReader extends Thread {
 				}
 
 				// reset frame
-				mFrameHeader = null;
+				mInsideFrame = false;
+				recordFrameSize(mFrameHeader.getTotalLength());
 
 				// reprocess if more data left
-				return mApplicationBuffer.position() > 0;
+				return available() > 0;
 
 			} else {
 
@@ -420,14 +987,254 @@ public class WebSocketReader extends Thread {
 	}
 
 
+	/**
+	 * Dispatch a message received in a single frame, without staging
+	 * its payload in mMessagePayload.
+	 *
+	 * @param payload    Frame payload, which is the complete message payload.
+	 */
+	private void deliverSingleFrameMessage(byte[] payload) throws Exception {
+
+		if (mFrameHeader.getOpcode() == 1) {
+
+			// validate incoming UTF-8, which must also end on codepoint
+			if (mWebSocketOptions.getValidateIncomingUtf8()) {
+				mUTF8Validator.reset();
+				if (!mUTF8Validator.validate(payload)) {
+					throw new WebSocketException("invalid UTF-8 in text message payload");
+				}
+				if (!mUTF8Validator.isValid()) {
+					throw new WebSocketException("UTF-8 text message payload ended within Unicode code point");
+				}
+			}
+
+			if (mWebSocketOptions.getReceiveTextMessagesRaw()) {
+				onRawTextMessage(payload);
+			} else {
+				onTextMessage(new String(payload, WebSocket.UTF8_ENCODING));
+			}
+
+		} else if (mFrameHeader.getOpcode() == 2) {
+
+			onBinaryMessage(payload);
+
+		} else {
+
+			// should not arrive here (handled before)
+			throw new Exception("logic error");
+		}
+	}
+
+
+	/**
+	 * Length of the (binary) message payload buffered on the heap so far.
+	 */
+	private int bufferedMessageLength() {
+		return mPooledPayload != null ? mPooledPayload.getLength() : mMessagePayload.size();
+	}
+
+
+	/**
+	 * Append data frame payload to the temporary file of the message being
+	 * received. On the first call, the file is created and the message
+	 * payload buffered on the heap so far is moved there.
+	 *
+	 * @param position   Absolute position of frame payload in application buffer.
+	 * @param length     Length of frame payload.
+	 */
+	private void spillPayload(int position, int length) throws IOException, WebSocketException {
+
+		if (mSpillChannel == null) {
+			mSpillFile = File.createTempFile("websocket", ".msg", mWebSocketOptions.getSpillDirectory());
+			mSpillAccess = new RandomAccessFile(mSpillFile, "rw");
+			mSpillChannel = mSpillAccess.getChannel();
+
+			ByteBuffer buffered = null;
+			if (mPooledPayload != null) {
+				buffered = ByteBuffer.wrap(mPooledPayload.getArray(), 0, mPooledPayload.getLength());
+			} else {
+				buffered = ByteBuffer.wrap(mMessagePayload.getByteArray(), 0, mMessagePayload.size());
+			}
+			while (buffered.hasRemaining()) {
+				mSpillChannel.write(buffered);
+			}
+
+			if (mPooledPayload != null) {
+				mPooledPayload.release();
+				mPooledPayload = null;
+			}
+			mMessagePayload.reset();
+		}
+
+		// a message is delivered as single mapping, which can't exceed 2GB
+		if (mSpillChannel.position() + length > Integer.MAX_VALUE) {
+			throw new WebSocketException("message payload too large");
+		}
+
+		ByteBuffer frame = mApplicationBuffer.duplicate();
+		frame.limit(position + length);
+		frame.position(position);
+		while (frame.hasRemaining()) {
+			mSpillChannel.write(frame);
+		}
+	}
+
+
+	/**
+	 * Deliver completed message assembled in a temporary file, mapped read-only
+	 * into memory. The file itself is removed, the mapping stays valid.
+	 */
+	private void deliverSpilledPayload() throws IOException {
+
+		MappedByteBuffer payload = mSpillChannel.map(FileChannel.MapMode.READ_ONLY, 0, mSpillChannel.size());
+		discardSpill();
+
+		// ok, message completed - reset all
+		mInsideMessage = false;
+
+		// dispatch WS binary message
+		onBinaryMessage(payload);
+	}
+
+
+	/**
+	 * Close and remove temporary file of spilled message, if any.
+	 */
+	private void discardSpill() {
+		if (mSpillChannel == null) {
+			return;
+		}
+
+		try {
+			mSpillAccess.close();
+		} catch (IOException e) {
+			Log.d(TAG, "could not close spill file (" + e.toString() + ")");
+		}
+		if (!mSpillFile.delete()) {
+			Log.d(TAG, "could not delete spill file " + mSpillFile);
+		}
+
+		mSpillFile = null;
+		mSpillAccess = null;
+		mSpillChannel = null;
+	}
+
+
+	/**
+	 * Append data frame payload to the pooled message payload, moving to
+	 * a larger pooled buffer when needed.
+	 *
+	 * @param position   Absolute position of frame payload in application buffer.
+	 * @param length     Length of frame payload.
+	 */
+	private void appendPooledPayload(int position, int length) throws WebSocketException {
+
+		int messageLength = mPooledPayload != null ? mPooledPayload.getLength() : 0;
+
+		// immediately bail out on message too large
+		if (messageLength + length > mWebSocketOptions.getMaxMessagePayloadSize()) {
+			throw new WebSocketException("message payload too large");
+		}
+
+		if (mPooledPayload == null) {
+			mPooledPayload = mPayloadBufferPool.acquire(length);
+		} else if (mPooledPayload.getCapacity() < messageLength + length) {
+			// grow at least twofold, so assembling a message copies it O(n) in total
+			long grown = Math.min(2L * mPooledPayload.getCapacity(), mWebSocketOptions.getMaxMessagePayloadSize());
+			PayloadBuffer larger = mPayloadBufferPool.acquire((int) Math.max(grown, messageLength + length));
+			System.arraycopy(mPooledPayload.getArray(), 0, larger.getArray(), 0, messageLength);
+			larger.setLength(messageLength);
+			mPooledPayload.release();
+			mPooledPayload = larger;
+		}
+
+		byte[] array = mPooledPayload.getArray();
+		int oldPosition = mApplicationBuffer.position();
+		mApplicationBuffer.position(position);
+		mApplicationBuffer.get(array, messageLength, length);
+		mApplicationBuffer.position(oldPosition);
+
+		// validate incoming UTF-8
+		if (mMessageOpcode == 1 && mWebSocketOptions.getValidateIncomingUtf8() && !mUTF8Validator.validate(array, messageLength, length)) {
+			throw new WebSocketException("invalid UTF-8 in text message payload");
+		}
+
+		mPooledPayload.setLength(messageLength + length);
+	}
+
+
+	/**
+	 * Release the pooled buffer of a message that will not be completed.
+	 */
+	private void discardPooledPayload() {
+		if (mPooledPayload != null) {
+			mPooledPayload.release();
+			mPooledPayload = null;
+		}
+	}
+
+
+	/**
+	 * Deliver completed message assembled in a pooled buffer. Ownership of
+	 * the buffer passes on to the receiver.
+	 */
+	private void deliverPooledPayload() throws Exception {
+
+		PayloadBuffer payload = mPooledPayload;
+		if (payload == null) {
+			payload = mPayloadBufferPool.acquire(0);
+		}
+
+		// ok, message completed - reset all
+		mPooledPayload = null;
+		mInsideMessage = false;
+
+		if (mMessageOpcode == 1) {
+
+			// verify that UTF-8 ends on codepoint
+			if (mWebSocketOptions.getValidateIncomingUtf8() && !mUTF8Validator.isValid()) {
+				payload.release();
+				throw new WebSocketException("UTF-8 text message payload ended within Unicode code point");
+			}
+
+			if (mWebSocketOptions.getReceiveTextMessagesRaw()) {
+
+				// dispatch WS text message as raw (but validated) UTF-8
+				onRawTextMessage(payload);
+
+			} else {
+
+				// dispatch WS text message as Java String (previously already validated)
+				String s = new String(payload.getArray(), 0, payload.getLength(), WebSocket.UTF8_ENCODING);
+				payload.release();
+				onTextMessage(s);
+			}
+
+		} else if (mMessageOpcode == 2) {
+
+			// dispatch WS binary message
+			onBinaryMessage(payload);
+
+		} else {
+
+			// should not arrive here (handled before)
+			payload.release();
+			throw new Exception("logic error");
+		}
+	}
+
+
 	/**
 	 * WebSockets handshake reply from server received, default notifies master.
 	 * 
-	 * @param success	Success handshake flag
+	 * @param success	    Success handshake flag
+	 * @param statusCode    HTTP status code (0 when no HTTP status line).
+	 * @param statusMessage HTTP status message.
+	 * @param headers       HTTP response headers, names in lower case.
 	 */
-	protected void onHandshake(boolean success) {
+	protected void onHandshake(boolean success, int statusCode, String statusMessage, Map<String, String> headers) {
 
-		notify(new WebSocketMessage.ServerHandshake(success));
+		notify(new WebSocketMessage.ServerHandshake(success, statusCode, statusMessage, headers));
 	}
 
 
@@ -502,90 +1309,220 @@ public class WebSocketReader extends Thread {
 
 
 	/**
-	 * Process WebSockets handshake received from server.
+	 * Frame of WebSockets text message received, default notifies master.
+	 * This will only be called when the option deliverMessageFragments
+	 * HAS been set.
+	 *
+	 * @param payload    Frame payload as raw (but validated) UTF-8 octets.
+	 * @param last       True, iff frame completes the message.
 	 */
-	private boolean processHandshake() throws UnsupportedEncodingException {
+	protected void onTextFragment(byte[] payload, boolean last) {
 
-		boolean res = false;
-		for (int pos = mApplicationBuffer.position() - 4; pos >= 0; --pos) {
-			if (mApplicationBuffer.get(pos+0) == 0x0d &&
-					mApplicationBuffer.get(pos+1) == 0x0a &&
-					mApplicationBuffer.get(pos+2) == 0x0d &&
-					mApplicationBuffer.get(pos+3) == 0x0a) {
+		notify(new WebSocketMessage.TextFragment(payload, last));
+	}
 
-				/// \todo process & verify handshake from server
-				/// \todo forward subprotocol, if any
 
-				int oldPosition = mApplicationBuffer.position();
+	/**
+	 * Frame of WebSockets binary message received, default notifies master.
+	 * This will only be called when the option deliverMessageFragments
+	 * HAS been set.
+	 *
+	 * @param payload    Frame payload.
+	 * @param last       True, iff frame completes the message.
+	 */
+	protected void onBinaryFragment(byte[] payload, boolean last) {
 
-				// Check HTTP status code
-				boolean serverError = false;
-				if (mApplicationBuffer.get(0) == 'H' &&
-						mApplicationBuffer.get(1) == 'T' &&
-						mApplicationBuffer.get(2) == 'T' &&
-						mApplicationBuffer.get(3) == 'P') {
+		notify(new WebSocketMessage.BinaryFragment(payload, last));
+	}
 
-					Pair<Integer, String> status = parseHTTPStatus();
-					if (status.first >= 300) {
-						// Invalid status code for success connection
-						notify(new WebSocketMessage.ServerError(status.first, status.second));
-						serverError = true;
-					}
+
+	/**
+	 * WebSockets binary message received into a temporary file, default
+	 * notifies master. This will only be called when the option
+	 * spillThreshold HAS been set.
+	 *
+	 * @param payload    Binary message payload, mapped read-only.
+	 */
+	protected void onBinaryMessage(MappedByteBuffer payload) {
+
+		notify(new WebSocketMessage.MappedBinaryMessage(payload));
+	}
+
+
+	/**
+	 * WebSockets text message received into a pooled buffer, default
+	 * notifies master. This will only be called when the option
+	 * receiveTextMessagesRaw HAS been set and a payload buffer pool is used.
+	 *
+	 * @param payload    Text message payload as raw UTF-8 octets.
+	 */
+	protected void onRawTextMessage(PayloadBuffer payload) {
+
+		notify(new WebSocketMessage.PooledRawTextMessage(payload));
+	}
+
+
+	/**
+	 * WebSockets binary message received into a pooled buffer, default
+	 * notifies master. This will only be called when a payload buffer
+	 * pool is used.
+	 *
+	 * @param payload    Binary message payload.
+	 */
+	protected void onBinaryMessage(PayloadBuffer payload) {
+
+		notify(new WebSocketMessage.PooledBinaryMessage(payload));
+	}
+
+
+	/**
+	 * Process WebSockets handshake received from server. The HTTP response
+	 * is parsed line by line as it arrives: scanning resumes where the last
+	 * call stopped, and every line is parsed exactly once.
+	 */
+	private boolean processHandshake() throws WebSocketException, UnsupportedEncodingException {
+
+		int available = available();
+		for (int offset = mHandshakeScanOffset; offset < available; ++offset) {
+			if (mApplicationBuffer.get(mReadPosition + offset) != 0x0a) {
+				continue;
+			}
+
+			// line complete, strip CRLF (or bare LF)
+			int lineEnd = offset;
+			if (lineEnd > mHandshakeLineStart && mApplicationBuffer.get(mReadPosition + lineEnd - 1) == 0x0d) {
+				--lineEnd;
+			}
+			int lineStart = mHandshakeLineStart;
+			mHandshakeLineStart = offset + 1;
+
+			if (lineEnd == lineStart) {
+				// empty line ends HTTP headers
+				consume(mHandshakeLineStart);
+				mHandshakeScanOffset = 0;
+				mHandshakeLineStart = 0;
+
+				boolean serverError = mStatusCode >= 300;
+				if (serverError) {
+					// Invalid status code for success connection
+					notify(new WebSocketMessage.ServerError(mStatusCode, mStatusMessage));
 				}
 
-				mApplicationBuffer.position(pos + 4);
-				mApplicationBuffer.limit(oldPosition);
-				mApplicationBuffer.compact();
+				onHandshake(!serverError, mStatusCode, mStatusMessage, Collections.unmodifiableMap(mResponseHeaders));
 
 				if (!serverError) {
-					// process further when data after HTTP headers left in buffer
-					res = mApplicationBuffer.position() > 0;
-
 					mState = ReaderState.STATE_OPEN;
+
+					// process further when data after HTTP headers left in buffer
+					return available() > 0;
 				} else {
-					res = true;
 					mState = ReaderState.STATE_CLOSED;
 					mStopped = true;
+					return true;
 				}
+			}
 
-				onHandshake(!serverError);
-				break;
+			String line = getHandshakeLine(lineStart, lineEnd);
+			if (mStatusMessage == null) {
+				parseStatusLine(line);
+			} else {
+				parseHeaderLine(line);
 			}
 		}
-		return res;
+		mHandshakeScanOffset = available;
+
+		if (available == mMaxBufferSize) {
+			throw new WebSocketException("server handshake exceeds buffer size");
+		}
+		return false;
 	}
 
-	private Pair<Integer, String> parseHTTPStatus() throws UnsupportedEncodingException {
-		int beg, end;
-		// Find first space
-		for (beg = 4; beg < mApplicationBuffer.position(); ++beg) {
-			if (mApplicationBuffer.get(beg) == ' ') break;
+
+	/**
+	 * Get line of server handshake as String.
+	 *
+	 * @param start      Offset of line start relative to read position.
+	 * @param end        Offset of line end (excluding CRLF) relative to read position.
+	 */
+	private String getHandshakeLine(int start, int end) throws UnsupportedEncodingException {
+		byte[] line = new byte[end - start];
+		for (int i = 0; i < line.length; ++i) {
+			line[i] = mApplicationBuffer.get(mReadPosition + start + i);
 		}
-		// Find second space
-		for (end = beg + 1; end < mApplicationBuffer.position(); ++end) {
-			if (mApplicationBuffer.get(end) == ' ') break;
+		return new String(line, WebSocket.UTF8_ENCODING);
+	}
+
+
+	/**
+	 * Parse HTTP status line, i.e. "HTTP/1.1 101 Switching Protocols".
+	 */
+	private void parseStatusLine(String line) {
+		mStatusMessage = "";
+		if (!line.startsWith("HTTP")) {
+			return;
+		}
+
+		int beg = line.indexOf(' ');
+		if (beg < 0) {
+			return;
+		}
+		int end = line.indexOf(' ', beg + 1);
+		if (end < 0) {
+			end = line.length();
+		} else {
+			mStatusMessage = line.substring(end + 1);
 		}
-		// Parse status code between them
-		++beg;
+
 		int statusCode = 0;
-		for (int i = 0; beg + i < end; ++i) {
-			int digit = (mApplicationBuffer.get(beg + i) - 0x30);
-			statusCode *= 10;
-			statusCode += digit;
+		for (int i = beg + 1; i < end; ++i) {
+			statusCode = statusCode * 10 + (line.charAt(i) - '0');
+		}
+		mStatusCode = statusCode;
+
+		if (mStatusCode >= 300) {
+			Log.w(TAG, String.format("Status: %d (%s)", mStatusCode, mStatusMessage));
+		}
+	}
+
+
+	/**
+	 * Parse HTTP header line. Header names are stored in lower case, values
+	 * of repeated headers are joined by comma.
+	 */
+	private void parseHeaderLine(String line) {
+		int colon = line.indexOf(':');
+		if (colon <= 0) {
+			return;
 		}
-		// Find end of line to extract error message
-		++end;
-		int eol;
-		for (eol = end; eol < mApplicationBuffer.position(); ++eol) {
-			if (mApplicationBuffer.get(eol) == 0x0d) break;
+
+		String name = line.substring(0, colon).trim().toLowerCase(Locale.US);
+		String value = line.substring(colon + 1).trim();
+
+		String previous = mResponseHeaders.get(name);
+		if (previous != null) {
+			value = previous + ", " + value;
 		}
-		int statusMessageLength = eol - end;
-		byte[] statusBuf = new byte[statusMessageLength];
-		mApplicationBuffer.position(end);
-		mApplicationBuffer.get(statusBuf, 0, statusMessageLength);
-		String statusMessage = new String(statusBuf, WebSocket.UTF8_ENCODING);
-		Log.w(TAG, String.format("Status: %d (%s)", statusCode, statusMessage));
-		return new Pair<Integer, String>(statusCode, statusMessage);
+		mResponseHeaders.put(name, value);
+	}
+
+
+	/**
+	 * Read from the socket directly into the application buffer.
+	 *
+	 * @return           Number of octets read, or -1 on end of stream.
+	 */
+	private int readIntoApplicationBuffer() throws IOException {
+		if (mSocketChannel != null) {
+			return mSocketChannel.read(mApplicationBuffer);
+		}
+
+		int bytesRead = mInputStream.read(mApplicationBuffer.array(),
+				mApplicationBuffer.arrayOffset() + mApplicationBuffer.position(),
+				mApplicationBuffer.remaining());
+		if (bytesRead > 0) {
+			mApplicationBuffer.position(mApplicationBuffer.position() + bytesRead);
+		}
+		return bytesRead;
 	}
 
 
@@ -616,58 +1553,107 @@ public class WebSocketReader extends Thread {
 			notifyAll();
 		}
 		
-		InputStream inputStream = null;
-		try {
-			inputStream = mSocket.getInputStream();
-		} catch (IOException e) {
-			Log.e(TAG, e.getLocalizedMessage());
-			return;
-		}
+		if (mSocketChannel == null) {
+			InputStream inputStream = null;
+			try {
+				inputStream = mSocket.getInputStream();
+			} catch (IOException e) {
+				Log.e(TAG, e.getLocalizedMessage());
+				return;
+			}
 
-		this.mInputStream = inputStream;
+			this.mInputStream = inputStream;
+		}
 
-		Log.d(TAG, "WebSocker reader running.");
+		Log.d(TAG, "WebSocker reader running (" + (mSocketChannel != null ? "channel" : "stream") + ").");
 		mApplicationBuffer.clear();
 
 		while (!mStopped) {
-			try {
 
-				int bytesRead = mInputStream.read(mNetworkBuffer);
-				if (bytesRead > 0) {
-					mApplicationBuffer.put(mNetworkBuffer, 0, bytesRead);
-					while (consumeData()) {
-					}
-				} else if (bytesRead == -1) {
-					Log.d(TAG, "run() : ConnectionLost");
+			awaitDeliveryCapacity();
+			if (mStopped) {
+				break;
+			}
 
-					notify(new WebSocketMessage.ConnectionLost());
-					this.mStopped = true;
-				} else {
-					Log.e(TAG, "WebSocketReader read() failed.");
-				}
-				
-			} catch (WebSocketException e) {
-				Log.d(TAG, "run() : WebSocketException (" + e.toString() + ")");
+			readAndConsume();
+		}
 
-				// wrap the exception and notify master
-				notify(new WebSocketMessage.ProtocolViolation(e));
-			} catch (SocketException e) {
-				Log.d(TAG, "run() : SocketException (" + e.toString() + ")");
+		finish();
+	}
 
-				// wrap the exception and notify master
-				notify(new WebSocketMessage.ConnectionLost());
-			} catch (IOException e) {
-				Log.d(TAG, "run() : IOException (" + e.toString() + ")");
-				
-				notify(new WebSocketMessage.ConnectionLost());
-			} catch (Exception e) {
-				Log.d(TAG, "run() : Exception (" + e.toString() + ")");
 
-				// wrap the exception and notify master
-				notify(new WebSocketMessage.Error(e));
+	/**
+	 * Read once from the socket and process everything buffered. With a
+	 * blocking socket, this waits for data. A non-blocking channel (reader
+	 * pool) is only read when selected as readable.
+	 *
+	 * @return           False, iff the reader has stopped.
+	 */
+	boolean readAndConsume() {
+		try {
+
+			prepareApplicationBuffer();
+
+			int bytesRead = readIntoApplicationBuffer();
+			if (bytesRead > 0) {
+				while (consumeData()) {
+				}
+			} else if (bytesRead == -1) {
+				Log.d(TAG, "run() : ConnectionLost");
+
+				notify(new WebSocketMessage.ConnectionLost());
+				this.mStopped = true;
+			} else if (mReaderPool == null) {
+				Log.e(TAG, "WebSocketReader read() failed.");
 			}
+			
+		} catch (WebSocketException e) {
+			Log.d(TAG, "run() : WebSocketException (" + e.toString() + ")");
+
+			// the message being received is aborted
+			discardPooledPayload();
+
+			// wrap the exception and notify master
+			notify(new WebSocketMessage.ProtocolViolation(e));
+		} catch (SocketException e) {
+			Log.d(TAG, "run() : SocketException (" + e.toString() + ")");
+
+			// wrap the exception and notify master
+			notify(new WebSocketMessage.ConnectionLost());
+		} catch (IOException e) {
+			Log.d(TAG, "run() : IOException (" + e.toString() + ")");
+			
+			notify(new WebSocketMessage.ConnectionLost());
+		} catch (Exception e) {
+			Log.d(TAG, "run() : Exception (" + e.toString() + ")");
+
+			// wrap the exception and notify master
+			notify(new WebSocketMessage.Error(e));
+		}
+
+		flushBatch();
+
+		return !mStopped;
+	}
+
+
+	SocketChannel getSocketChannel() {
+		return mSocketChannel;
+	}
+
+
+	/**
+	 * Release resources once the reader has stopped.
+	 */
+	void finish() {
+
+		if (mFinished) {
+			return;
 		}
+		mFinished = true;
 
+		discardSpill();
+		discardPooledPayload();
 
 		Log.d(TAG, "WebSocket reader ended.");
 	}
@@ -0,0 +1,296 @@
+/******************************************************************************
+ *
+ *  Copyright 2011-2012 Tavendo GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package de.tavendo.autobahn;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+/**
+ * Serves the receiving leg of many WebSockets connections from a small, fixed
+ * number of threads, instead of one WebSocketReader thread per connection.
+ * Each pool thread runs a Selector loop over the channels of its connections
+ * and processes received data with the framing logic of WebSocketReader.
+ * A connection is assigned to the pool thread serving the fewest connections
+ * and stays there, so connections are spread evenly across threads (and cores),
+ * while each connection's reader state is only ever touched by one thread.
+ *
+ * A pool is set with WebSocketOptions.setReaderPool() and may be shared by
+ * any number of connections. Only plain (ws://) connections can be pooled,
+ * secure connections provide no channel and keep using a reader thread.
+ */
+public class WebSocketReaderPool {
+	private static final String TAG = WebSocketReaderPool.class.getCanonicalName();
+	private static final String WS_READER_POOL = "WebSocketReaderPool-";
+
+	private final SelectorThread[] mThreads;
+	private boolean mShutdown = false;
+
+
+	/**
+	 * Create reader pool with one thread per available processor.
+	 */
+	public WebSocketReaderPool() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+
+	/**
+	 * Create reader pool. Threads are started as connections are added.
+	 *
+	 * @param threadCount   Maximum number of reader threads.
+	 */
+	public WebSocketReaderPool(int threadCount) {
+		mThreads = new SelectorThread[Math.max(threadCount, 1)];
+	}
+
+
+	/**
+	 * Get maximum number of reader threads.
+	 *
+	 * @return           Number of threads.
+	 */
+	public int getThreadCount() {
+		return mThreads.length;
+	}
+
+
+	/**
+	 * Get number of connections currently served by the pool.
+	 *
+	 * @return           Number of connections.
+	 */
+	public synchronized int getConnectionCount() {
+		int count = 0;
+		for (SelectorThread thread : mThreads) {
+			if (thread != null) {
+				count += thread.mConnectionCount.get();
+			}
+		}
+		return count;
+	}
+
+
+	/**
+	 * Stop all reader threads. Connections still open are no longer read
+	 * from, so this should be called once all connections have been closed.
+	 */
+	public synchronized void shutdown() {
+		mShutdown = true;
+		for (SelectorThread thread : mThreads) {
+			if (thread != null) {
+				thread.shutdown();
+			}
+		}
+	}
+
+
+	/**
+	 * Start serving a reader, whose channel must be in non-blocking mode.
+	 */
+	void register(final WebSocketReader reader) throws IOException {
+		final SelectorThread thread = nextThread();
+		reader.mSelectorThread = thread;
+
+		thread.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					reader.mSelectionKey = reader.getSocketChannel().register(thread.mSelector, SelectionKey.OP_READ, reader);
+				} catch (ClosedChannelException e) {
+					thread.close(reader);
+					reader.notify(new WebSocketMessage.ConnectionLost());
+				}
+			}
+		});
+	}
+
+
+	/**
+	 * Select a reader's channel for reading again, after reading was
+	 * paused by flow control.
+	 */
+	void resume(final WebSocketReader reader) {
+		final SelectorThread thread = reader.mSelectorThread;
+		if (thread == null) {
+			// closed meanwhile
+			return;
+		}
+
+		thread.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				SelectionKey key = reader.mSelectionKey;
+				if (key != null && key.isValid()) {
+					key.interestOps(SelectionKey.OP_READ);
+				}
+			}
+		});
+	}
+
+
+	/**
+	 * Stop serving a reader that has been quit.
+	 */
+	void cancel(final WebSocketReader reader) {
+		final SelectorThread thread = reader.mSelectorThread;
+		if (thread == null) {
+			return;
+		}
+
+		thread.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				thread.close(reader);
+			}
+		});
+	}
+
+
+	/**
+	 * Pick the thread serving the fewest connections, starting
+	 * another thread while there are less than the maximum.
+	 */
+	private synchronized SelectorThread nextThread() throws IOException {
+		if (mShutdown) {
+			throw new IOException("reader pool shut down");
+		}
+
+		SelectorThread best = null;
+		for (int i = 0; i < mThreads.length; ++i) {
+			if (mThreads[i] == null) {
+				mThreads[i] = new SelectorThread(WS_READER_POOL + i);
+				mThreads[i].start();
+				best = mThreads[i];
+				break;
+			}
+			if (best == null || mThreads[i].mConnectionCount.get() < best.mConnectionCount.get()) {
+				best = mThreads[i];
+			}
+		}
+
+		best.mConnectionCount.incrementAndGet();
+		return best;
+	}
+
+
+
+	/**
+	 * Pool thread, reading from the channels registered with its selector.
+	 * Other threads hand work to it through execute().
+	 */
+	static class SelectorThread extends Thread {
+		private final Selector mSelector;
+		private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<Runnable>();
+		private final AtomicInteger mConnectionCount = new AtomicInteger(0);
+		private volatile boolean mStopped = false;
+
+
+
+		SelectorThread(String name) throws IOException {
+			super(name);
+			setDaemon(true);
+
+			this.mSelector = Selector.open();
+		}
+
+
+
+		void execute(Runnable task) {
+			mTasks.add(task);
+			mSelector.wakeup();
+		}
+
+		void shutdown() {
+			mStopped = true;
+			mSelector.wakeup();
+		}
+
+		/**
+		 * Deregister a reader and release its resources (on this thread only).
+		 */
+		void close(WebSocketReader reader) {
+			if (reader.mSelectorThread == this) {
+				reader.mSelectorThread = null;
+				mConnectionCount.decrementAndGet();
+			}
+			if (reader.mSelectionKey != null) {
+				reader.mSelectionKey.cancel();
+			}
+			reader.finish();
+		}
+
+
+
+		@Override
+		public void run() {
+			Log.d(TAG, "WebSocket reader pool thread running.");
+
+			while (!mStopped) {
+				try {
+					mSelector.select();
+				} catch (IOException e) {
+					Log.e(TAG, "select() failed (" + e.toString() + ")");
+					break;
+				}
+
+				Runnable task;
+				while ((task = mTasks.poll()) != null) {
+					task.run();
+				}
+
+				Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					if (!key.isValid()) {
+						continue;
+					}
+
+					WebSocketReader reader = (WebSocketReader) key.attachment();
+					if (!reader.readAndConsume()) {
+						close(reader);
+					} else if (reader.pauseIfAboveHighWatermark()) {
+						key.interestOps(0);
+					}
+				}
+			}
+
+			for (SelectionKey key : mSelector.keys()) {
+				close((WebSocketReader) key.attachment());
+			}
+			try {
+				mSelector.close();
+			} catch (IOException e) {
+			}
+
+			Log.d(TAG, "WebSocket reader pool thread ended.");
+		}
+	}
+}
@@ -20,31 +20,57 @@ package de.tavendo.autobahn;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.lang.ref.WeakReference;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import android.os.Handler;
-import android.os.Looper;
 import android.os.Message;
 import android.util.Base64;
 import android.util.Log;
 
 /**
  * WebSocket writer, the sending leg of a WebSockets connection.
- * This is run on it's background thread with it's own message loop.
- * The only method that needs to be called (from foreground thread) is forward(),
+ * This is run on it's background thread, taking messages from lock-free queues.
+ * The only method that needs to be called (from any thread) is forward(),
  * which is used to forward a WebSockets message to this object (running on
  * background thread) so that it can be formatted and sent out on the
- * underlying TCP socket.
+ * underlying TCP socket. Messages forwarded in a burst are drained from the
+ * queues together and their frames are written to the socket in one go.
+ *
+ * Messages are taken from three lanes: pings and pongs first, then
+ * messages forwarded with high priority, then all others. Pings and pongs
+ * are also sent between the fragments of a large message, so they are held
+ * up by at most one fragment. A close stays ordered with the data messages,
+ * as no data may follow it, and waits for a streamed or file message being
+ * sent to complete.
+ *
+ * With a send buffer limit set in the options, the payload of queued data
+ * messages is accounted. Senders using offer() or put() are then refused
+ * or held up while it is above the limit, and the master is notified
+ * once it has dropped to the low watermark again.
  */
 public class WebSocketWriter extends Thread {
 	private static final String TAG = WebSocketWriter.class.getCanonicalName();
 	
 	private static final int WEB_SOCKETS_VERSION = 13;
 	private static final String CRLF = "\r\n";
+	private static final int FILE_MAP_WINDOW = 1024 * 1024;
 
 	private final Random mRandom = new Random();
 	private final Handler mWebSocketConnectionHandler;
@@ -52,9 +78,39 @@ public class WebSocketWriter extends Thread {
 	private final ByteBuffer mApplicationBuffer;
 	private final Socket mSocket;
 
+	private final MpscQueue<Object> mControlQueue = new MpscQueue<Object>();
+	private final MpscQueue<Object> mHighQueue = new MpscQueue<Object>();
+	private final MpscQueue<Object> mQueue = new MpscQueue<Object>();
+	private final AtomicBoolean mWaiting = new AtomicBoolean(false);
+	private volatile boolean mQuit = false;
+
+	private final long mSendHighWatermark;
+	private final long mSendLowWatermark;
+	private final AtomicLong mSendBufferBytes = new AtomicLong(0);
+	private final AtomicBoolean mSendBufferFull = new AtomicBoolean(false);
+	private final Object mSendBufferLock = new Object();
+	private final List<WebSocket.WebSocketSendCallback> mUnflushedCallbacks = new ArrayList<WebSocket.WebSocketSendCallback>();
+	private final int mMaxBatchBytes;
+	private final int mMaxBatchFrames;
+	private int mBatchFrames;
+	private int mFlushCount;
+
+	private final int mFragmentSize;
+	private boolean mStreaming = false;
+	private final AtomicBoolean mStreamOpen = new AtomicBoolean(false);
+	private List<Object> mDeferred = new ArrayList<Object>();
+
+	private WebSocketMessage.FileMessage mFile = null;
+	private MappedByteBuffer mFileWindow = null;
+
 	private OutputStream mOutputStream;
 
-	private Handler mHandler;
+	/// UTF-8 encoder for text, reused for every message (writer thread only).
+	private final CharsetEncoder mTextEncoder = Charset.forName(WebSocket.UTF8_ENCODING).newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	private char[] mTextChars = new char[256];
+	private CharBuffer mTextBuffer = CharBuffer.wrap(mTextChars);
 
 
 	/**
@@ -73,7 +129,14 @@ public class WebSocketWriter extends Thread {
 		this.mWebSocketOptions = options;
 		this.mSocket = socket;
 		
-		this.mApplicationBuffer = ByteBuffer.allocate(options.getMaxFramePayloadSize() + 14);
+		// room for a full batch plus the frame that completes it
+		this.mMaxBatchBytes = options.getMaxWriteBatchBytes();
+		this.mMaxBatchFrames = options.getMaxWriteBatchFrames();
+		this.mFragmentSize = options.getOutgoingFragmentSize();
+		this.mApplicationBuffer = ByteBuffer.allocate(mMaxBatchBytes + mFragmentSize + 14);
+
+		this.mSendHighWatermark = options.getSendHighWatermarkBytes();
+		this.mSendLowWatermark = Math.min(options.getSendLowWatermarkBytes(), mSendHighWatermark);
 
 		Log.d(TAG, "WebSocket writer created.");
 	}
@@ -90,9 +153,250 @@ public class WebSocketWriter extends Thread {
 	 *                      this class).
 	 */
 	public void forward(Object message) {
-		Message msg = mHandler.obtainMessage();
-		msg.obj = message;
-		mHandler.sendMessage(msg);
+		forward(message, false);
+	}
+
+
+	/**
+	 * Forward a message to the writer, like forward(Object), in the high
+	 * priority lane when requested. High priority messages overtake all
+	 * others still queued, except pings and pongs, which always go first.
+	 * Messages are sent in order of forwarding within each lane.
+	 *
+	 * @param message       Message to send to WebSockets writer.
+	 * @param highPriority  True, iff the message should overtake normal ones.
+	 */
+	public void forward(Object message, boolean highPriority) {
+		if (mSendHighWatermark > 0) {
+			mSendBufferBytes.addAndGet(payloadSize(message));
+		}
+
+		if (message instanceof WebSocketMessage.Ping || message instanceof WebSocketMessage.Pong) {
+			mControlQueue.offer(message);
+		} else if (highPriority) {
+			mHighQueue.offer(message);
+		} else {
+			mQueue.offer(message);
+		}
+
+		// wake up writer thread only when it is (about to get) parked, and
+		// only once: the first producer to clear the flag does the unpark
+		if (mWaiting.get() && mWaiting.compareAndSet(true, false)) {
+			LockSupport.unpark(this);
+		}
+	}
+
+
+	/**
+	 * Forward a message to the writer, unless the send buffer is full.
+	 * Messages without payload are always accepted.
+	 *
+	 * @param message       Message to send to WebSockets writer.
+	 * @param highPriority  True, iff the message should overtake normal ones.
+	 * @return              True if forwarded, false if the buffer is full.
+	 */
+	public boolean offer(Object message, boolean highPriority) {
+		if (mSendHighWatermark > 0) {
+			long size = payloadSize(message);
+			if (size > 0 && !hasRoom(size)) {
+				// announce before checking again, so the writer
+				// draining meanwhile either is seen or notifies
+				mSendBufferFull.set(true);
+				if (!hasRoom(size)) {
+					return false;
+				}
+			}
+		}
+		forward(message, highPriority);
+		return true;
+	}
+
+
+	/**
+	 * Forward a message to the writer, waiting while the send buffer is
+	 * full, or throwing IllegalStateException when the options say to
+	 * reject messages then. On the writer thread itself, i.e. from a send
+	 * callback, the message is queued regardless, as the writer cannot
+	 * drain the buffer while waiting for it.
+	 *
+	 * @param message       Message to send to WebSockets writer.
+	 * @param highPriority  True, iff the message should overtake normal ones.
+	 */
+	public void put(Object message, boolean highPriority) {
+		if (offer(message, highPriority)) {
+			return;
+		}
+		if (!mWebSocketOptions.getBlockWhenSendBufferFull()) {
+			throw new IllegalStateException("send buffer full");
+		}
+		if (Thread.currentThread() == this) {
+			forward(message, highPriority);
+			return;
+		}
+
+		try {
+			synchronized (mSendBufferLock) {
+				while (!offer(message, highPriority)) {
+					if (mQuit) {
+						failMessage(message, new WebSocketException("connection closed"));
+						return;
+					}
+					mSendBufferLock.wait();
+				}
+			}
+		} catch (InterruptedException e) {
+			// do not lose the message, but let the caller see the interrupt
+			Thread.currentThread().interrupt();
+			forward(message, highPriority);
+		}
+	}
+
+
+	/**
+	 * Claim the message stream of the connection, as only one may be open
+	 * at a time (any thread).
+	 *
+	 * @return              True, iff no stream was open.
+	 */
+	boolean openStream() {
+		return mStreamOpen.compareAndSet(false, true);
+	}
+
+
+	/**
+	 * Release the message stream claimed with openStream(), once its last
+	 * fragment has been forwarded.
+	 */
+	void closeStream() {
+		mStreamOpen.set(false);
+	}
+
+
+	/**
+	 * Get payload size of data messages queued, but not yet
+	 * taken up by the writer. Only kept with a send buffer limit.
+	 *
+	 * @return           Payload octets.
+	 */
+	public long getSendBufferBytes() {
+		return mSendBufferBytes.get();
+	}
+
+
+	/**
+	 * Check whether the send buffer would take a message now.
+	 *
+	 * @return           True, iff there is no limit or it is not reached.
+	 */
+	public boolean isWritable() {
+		return mSendHighWatermark == 0 || mSendBufferBytes.get() < mSendHighWatermark;
+	}
+
+
+	private boolean hasRoom(long size) {
+		long queued = mSendBufferBytes.get();
+		return queued == 0 || queued + size <= mSendHighWatermark;
+	}
+
+
+	/**
+	 * Get payload size of a data message for send buffer accounting.
+	 */
+	private static long payloadSize(Object message) {
+		if (message instanceof WebSocketMessage.TrackedMessage) {
+			message = ((WebSocketMessage.TrackedMessage) message).mMessage;
+		}
+
+		if (message instanceof WebSocketMessage.TextMessage) {
+			String payload = ((WebSocketMessage.TextMessage) message).mPayload;
+			return payload != null ? utf8Length(payload) : 0;
+		} else if (message instanceof WebSocketMessage.RawTextMessage) {
+			byte[] payload = ((WebSocketMessage.RawTextMessage) message).mPayload;
+			return payload != null ? payload.length : 0;
+		} else if (message instanceof WebSocketMessage.BinaryMessage) {
+			byte[] payload = ((WebSocketMessage.BinaryMessage) message).mPayload;
+			return payload != null ? payload.length : 0;
+		} else if (message instanceof WebSocketMessage.ByteBufferMessage) {
+			return ((WebSocketMessage.ByteBufferMessage) message).mPayload.remaining();
+		} else if (message instanceof PreparedMessage) {
+			return ((PreparedMessage) message).getPayload().length;
+		} else if (message instanceof WebSocketMessage.TextFragment) {
+			return ((WebSocketMessage.TextFragment) message).mPayload.length;
+		} else if (message instanceof WebSocketMessage.BinaryFragment) {
+			return ((WebSocketMessage.BinaryFragment) message).mPayload.length;
+		}
+		return 0;
+	}
+
+
+	/**
+	 * Get length of text encoded as UTF-8, as sendTextMessage() encodes it
+	 * (unpaired surrogates become a single '?').
+	 */
+	private static long utf8Length(String text) {
+		int count = text.length();
+		long length = count;
+		for (int i = 0; i < count; ++i) {
+			char c = text.charAt(i);
+			if (c < 0x80) {
+				continue;
+			} else if (c < 0x800) {
+				length += 1;
+			} else if (c < 0xd800 || c > 0xdfff) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < count && Character.isLowSurrogate(text.charAt(i + 1))) {
+				// 4 octets for the pair
+				length += 2;
+				++i;
+			}
+		}
+		return length;
+	}
+
+
+	/**
+	 * Account for a message taken up by the writer thread, telling
+	 * waiting senders and the master once the buffer has drained
+	 * to the low watermark.
+	 */
+	private void released(Object message) {
+		long size = payloadSize(message);
+		if (size == 0) {
+			return;
+		}
+
+		long queued = mSendBufferBytes.addAndGet(-size);
+		if (queued <= mSendLowWatermark && mSendBufferFull.get() && mSendBufferFull.compareAndSet(true, false)) {
+			synchronized (mSendBufferLock) {
+				mSendBufferLock.notifyAll();
+			}
+			notify(new WebSocketMessage.Writable());
+		}
+	}
+
+
+	/**
+	 * Tell the sender of a message which will not be sent, hand back the
+	 * buffer of a buffer message and close the channel of a file message.
+	 */
+	private static void failMessage(Object message, Exception e) {
+		if (message instanceof WebSocketMessage.TrackedMessage) {
+			WebSocketMessage.TrackedMessage tracked = (WebSocketMessage.TrackedMessage) message;
+			tracked.mCallback.onSendFailed(e);
+			message = tracked.mMessage;
+		}
+		if (message instanceof WebSocketMessage.ByteBufferMessage) {
+			WebSocketMessage.ByteBufferMessage buffer = (WebSocketMessage.ByteBufferMessage) message;
+			if (buffer.mCallback != null) {
+				buffer.mCallback.onPayloadReleased(buffer.mPayload);
+			}
+		} else if (message instanceof WebSocketMessage.FileMessage) {
+			try {
+				((WebSocketMessage.FileMessage) message).mChannel.close();
+			} catch (IOException ioe) {
+				Log.e(TAG, "cannot close file (" + ioe.toString() + ")");
+			}
+		}
 	}
 
 
@@ -123,12 +427,10 @@ public class WebSocketWriter extends Thread {
 	/**
 	 * Create new (random) frame mask.
 	 *
-	 * @return Frame mask (4 octets).
+	 * @return Frame mask (4 octets, big endian).
 	 */
-	private byte[] newFrameMask() {
-		final byte[] ba = new byte[4];
-		mRandom.nextBytes(ba);
-		return ba;
+	private int newFrameMask() {
+		return mRandom.nextInt();
 	}
 
 
@@ -140,33 +442,69 @@ public class WebSocketWriter extends Thread {
 		if (path == null || path.length() == 0) {
 			path = "/";
 		}
+		String query = message.getURI().getQuery();
 
-        String query = message.getURI().getQuery();
-        if (query != null && query.length() > 0) {
-    		path = path + "?" + query;
-    	}
+		putText("GET ");
+		putText(path);
+		if (query != null && query.length() > 0) {
+			putText("?");
+			putText(query);
+		}
+		putText(" HTTP/1.1" + CRLF);
 
-        mApplicationBuffer.put(("GET " + path + " HTTP/1.1" + CRLF).getBytes());
-		mApplicationBuffer.put(("Host: " + message.getURI().getHost() + CRLF).getBytes());
-		mApplicationBuffer.put(("Upgrade: WebSocket" + CRLF).getBytes());
-		mApplicationBuffer.put(("Connection: Upgrade" + CRLF).getBytes());
-		mApplicationBuffer.put(("Sec-WebSocket-Key: " + newHandshakeKey() + CRLF).getBytes());
+		putText("Host: ");
+		putText(message.getURI().getHost());
+		putText(CRLF);
+		putText("Upgrade: WebSocket" + CRLF);
+		putText("Connection: Upgrade" + CRLF);
+		putText("Sec-WebSocket-Key: ");
+		putText(newHandshakeKey());
+		putText(CRLF);
 
 		if (message.getOrigin() != null) {
-			mApplicationBuffer.put(("Origin: " + message.getOrigin().toString() + CRLF).getBytes());
+			putText("Origin: ");
+			putText(message.getOrigin().toString());
+			putText(CRLF);
 		}
 
 		if (message.getSubprotocols() != null && message.getSubprotocols().length > 0) {
-			mApplicationBuffer.put(("Sec-WebSocket-Protocol: ").getBytes());
+			putText("Sec-WebSocket-Protocol: ");
 			for (int i = 0; i < message.getSubprotocols().length; ++i) {
-				mApplicationBuffer.put((message.getSubprotocols()[i]).getBytes());
-				mApplicationBuffer.put((", ").getBytes());
+				if (i > 0) {
+					putText(", ");
+				}
+				putText(message.getSubprotocols()[i]);
 			}
-			mApplicationBuffer.put((CRLF).getBytes());
+			putText(CRLF);
 		}
 
-		mApplicationBuffer.put(("Sec-WebSocket-Version: " + WEB_SOCKETS_VERSION + CRLF).getBytes());
-		mApplicationBuffer.put((CRLF).getBytes());
+		putText("Sec-WebSocket-Version: " + WEB_SOCKETS_VERSION + CRLF);
+		putText(CRLF);
+	}
+
+
+	/**
+	 * Put text into the application buffer as UTF-8.
+	 */
+	private void putText(String text) {
+		int count = text.length();
+		if (mTextChars.length < count) {
+			mTextChars = new char[Math.max(count, 2 * mTextChars.length)];
+			mTextBuffer = CharBuffer.wrap(mTextChars);
+		}
+		text.getChars(0, count, mTextChars, 0);
+		mTextBuffer.clear();
+		mTextBuffer.limit(count);
+
+		// unpaired surrogates are replaced by '?', as with String.getBytes()
+		mTextEncoder.reset();
+		CoderResult result = mTextEncoder.encode(mTextBuffer, mApplicationBuffer, true);
+		if (result.isUnderflow()) {
+			result = mTextEncoder.flush(mApplicationBuffer);
+		}
+		if (result.isOverflow()) {
+			throw new BufferOverflowException();
+		}
 	}
 
 
@@ -231,19 +569,52 @@ public class WebSocketWriter extends Thread {
 		if (message.mPayload.length > mWebSocketOptions.getMaxMessagePayloadSize()) {
 			throw new WebSocketException("message payload exceeds payload limit");
 		}
-		sendFrame(2, true, message.mPayload);
+		sendFragmented(2, true, true, message.mPayload);
 	}
 
 
 	/**
-	 * Send WebSockets text message.
+	 * Send WebSockets text message. Text that surely fits a single frame
+	 * is encoded straight into the application buffer, behind room for the
+	 * largest header it may need. Longer text is encoded up front and sent
+	 * fragmented.
 	 */
 	private void sendTextMessage(WebSocketMessage.TextMessage message) throws IOException, WebSocketException {
-		byte[] payload = message.mPayload.getBytes(WebSocket.UTF8_ENCODING);
-		if (payload.length > mWebSocketOptions.getMaxMessagePayloadSize()) {
+		// UTF-8 takes at most 3 octets per UTF-16 char
+		long maxLength = 3L * message.mPayload.length();
+
+		if (maxLength > mFragmentSize) {
+			byte[] payload = message.mPayload.getBytes(WebSocket.UTF8_ENCODING);
+			if (payload.length > mWebSocketOptions.getMaxMessagePayloadSize()) {
+				throw new WebSocketException("message payload exceeds payload limit");
+			}
+			sendFragmented(1, true, true, payload);
+			return;
+		}
+
+		int start = mApplicationBuffer.position();
+		int reserved = frameHeaderSize((int) maxLength);
+		mApplicationBuffer.position(start + reserved);
+		putText(message.mPayload);
+		int length = mApplicationBuffer.position() - start - reserved;
+		mApplicationBuffer.position(start);
+
+		if (length > mWebSocketOptions.getMaxMessagePayloadSize()) {
 			throw new WebSocketException("message payload exceeds payload limit");
 		}
-		sendFrame(1, true, payload);
+
+		int mask = putFrameHeader(1, true, length);
+		int position = mApplicationBuffer.position();
+		if (position < start + reserved) {
+			// header is shorter than reserved, move payload up to it
+			byte[] buffer = mApplicationBuffer.array();
+			int base = mApplicationBuffer.arrayOffset();
+			System.arraycopy(buffer, base + start + reserved, buffer, base + position, length);
+		}
+		mApplicationBuffer.position(position + length);
+		if (mWebSocketOptions.getMaskClientFrames()) {
+			maskPayload(mApplicationBuffer, position, length, mask);
+		}
 	}
 
 
@@ -254,7 +625,254 @@ public class WebSocketWriter extends Thread {
 		if (message.mPayload.length > mWebSocketOptions.getMaxMessagePayloadSize()) {
 			throw new WebSocketException("message payload exceeds payload limit");
 		}
-		sendFrame(1, true, message.mPayload);
+		sendFragmented(1, true, true, message.mPayload);
+	}
+
+
+	/**
+	 * Send prepared message. Encoding and header were done up front, so a
+	 * message fitting a single frame is just copied (and masked).
+	 */
+	private void sendPreparedMessage(PreparedMessage message) throws IOException, WebSocketException {
+		byte[] payload = message.getPayload();
+		if (payload.length > mWebSocketOptions.getMaxMessagePayloadSize()) {
+			throw new WebSocketException("message payload exceeds payload limit");
+		}
+		if (payload.length > mFragmentSize) {
+			sendFragmented(message.isText() ? 1 : 2, true, true, payload);
+			return;
+		}
+
+		boolean masked = mWebSocketOptions.getMaskClientFrames();
+		mApplicationBuffer.put(message.getHeader(masked));
+		++mBatchFrames;
+
+		if (masked) {
+			int mask = newFrameMask();
+			mApplicationBuffer.putInt(mask);
+			int position = mApplicationBuffer.position();
+			mApplicationBuffer.put(payload);
+			maskPayload(mApplicationBuffer, position, payload.length, mask);
+		} else {
+			mApplicationBuffer.put(payload);
+		}
+	}
+
+
+	/**
+	 * Send a message whose sender wants to know once it has been written.
+	 * The callback fires when the buffer holding its last frame is flushed.
+	 */
+	private void sendTrackedMessage(WebSocketMessage.TrackedMessage message) throws IOException, WebSocketException {
+		try {
+			processMessage(message.mMessage);
+		} catch (WebSocketException e) {
+			message.mCallback.onSendFailed(e);
+			throw e;
+		} catch (IOException e) {
+			message.mCallback.onSendFailed(e);
+			throw e;
+		}
+		mUnflushedCallbacks.add(message.mCallback);
+	}
+
+
+	/**
+	 * Send WebSockets raw text or binary message from a buffer, without
+	 * copying it to the heap first. The caller's buffer is left as it is,
+	 * and released to the callback however sending ends.
+	 */
+	private void sendByteBufferMessage(WebSocketMessage.ByteBufferMessage message) throws IOException, WebSocketException {
+		try {
+			if (message.mPayload.remaining() > mWebSocketOptions.getMaxMessagePayloadSize()) {
+				throw new WebSocketException("message payload exceeds payload limit");
+			}
+			sendFragmented(message.mText ? 1 : 2, message.mPayload.duplicate());
+		} finally {
+			if (message.mCallback != null) {
+				message.mCallback.onPayloadReleased(message.mPayload);
+			}
+		}
+	}
+
+
+	/**
+	 * Send next fragment of a message streamed by WebSocketMessageOutputStream.
+	 * The first fragment starts the message, the last one completes it.
+	 */
+	private void sendStreamFragment(int opcode, byte[] payload, boolean last) throws IOException, WebSocketException {
+		sendFragmented(opcode, !mStreaming, last, payload);
+		mStreaming = !last;
+
+		if (last) {
+			sendDeferred();
+		}
+	}
+
+
+	/**
+	 * Send next fragment of a file message. The region is mapped into memory
+	 * a window at a time, and only one fragment is sent per turn: until the
+	 * file is complete, the message is queued again behind what has been
+	 * forwarded meanwhile, so control frames are not held up by a large file.
+	 */
+	private void sendFileFragment(WebSocketMessage.FileMessage message) throws IOException, WebSocketException {
+		boolean first = mFile == null;
+		mFile = message;
+
+		if (message.mPosition < message.mEnd && (mFileWindow == null || !mFileWindow.hasRemaining())) {
+			try {
+				long size = Math.min(message.mEnd - message.mPosition, FILE_MAP_WINDOW);
+				mFileWindow = message.mChannel.map(FileChannel.MapMode.READ_ONLY, message.mPosition, size);
+			} catch (IOException e) {
+				finishFile();
+				throw new WebSocketException("cannot map file (" + e.toString() + ")");
+			}
+		}
+
+		if (mFileWindow == null) {
+			// empty region
+			sendFrame(2, true, null);
+		} else {
+			int limit = mFileWindow.limit();
+			int length = Math.min(mFileWindow.remaining(), mFragmentSize);
+			mFileWindow.limit(mFileWindow.position() + length);
+			message.mPosition += length;
+
+			sendBufferFrame(first ? 2 : 0, message.mPosition == message.mEnd, mFileWindow);
+			mFileWindow.limit(limit);
+		}
+
+		if (message.mPosition < message.mEnd) {
+			mQueue.offer(message);
+		} else {
+			finishFile();
+			sendDeferred();
+		}
+	}
+
+
+	/**
+	 * Release the file message being sent, closing its channel.
+	 */
+	private void finishFile() {
+		try {
+			mFile.mChannel.close();
+		} catch (IOException e) {
+			Log.e(TAG, "cannot close file (" + e.toString() + ")");
+		}
+		mFile = null;
+		mFileWindow = null;
+	}
+
+
+	/**
+	 * Send data messages held back while a streamed or file message was open.
+	 */
+	private void sendDeferred() throws IOException {
+		if (mDeferred.isEmpty()) {
+			return;
+		}
+
+		List<Object> deferred = mDeferred;
+		mDeferred = new ArrayList<Object>();
+		for (Object msg : deferred) {
+			// the fragment completing the open message may have filled the batch
+			if (mApplicationBuffer.position() >= mMaxBatchBytes || mBatchFrames >= mMaxBatchFrames) {
+				flushBuffer();
+			}
+			try {
+				processMessage(msg);
+			} catch (WebSocketException e) {
+				notify(new WebSocketMessage.Error(e));
+			}
+		}
+	}
+
+
+	/**
+	 * Send (part of) a message as frames of at most the outgoing fragment
+	 * size. Frames are flushed to the socket as the batch fills up, so a
+	 * message may be of any size.
+	 *
+	 * @param opcode     Message opcode, used for the first frame if first is set.
+	 * @param first      True, iff payload begins the message.
+	 * @param fin        True, iff payload completes the message.
+	 * @param payload    Payload (or null for empty).
+	 */
+	private void sendFragmented(int opcode, boolean first, boolean fin, byte[] payload) throws IOException {
+		int length = payload != null ? payload.length : 0;
+		int offset = 0;
+
+		do {
+			int chunk = Math.min(length - offset, mFragmentSize);
+			boolean last = offset + chunk == length;
+
+			sendFrame(first ? opcode : 0, fin && last, payload, offset, chunk);
+			first = false;
+			offset += chunk;
+
+			if (!last) {
+				if (mApplicationBuffer.position() >= mMaxBatchBytes || mBatchFrames >= mMaxBatchFrames) {
+					flushBuffer();
+				}
+				sendControlFrames();
+			}
+		} while (offset < length);
+	}
+
+
+	/**
+	 * Send a complete message from the remaining octets of a buffer as
+	 * frames of at most the outgoing fragment size, flushing as the batch
+	 * fills up. The buffer's position is advanced past the payload.
+	 *
+	 * @param opcode     Message opcode.
+	 * @param payload    Payload buffer.
+	 */
+	private void sendFragmented(int opcode, ByteBuffer payload) throws IOException {
+		final int end = payload.limit();
+		boolean first = true;
+
+		do {
+			payload.limit(Math.min(end, payload.position() + mFragmentSize));
+			boolean last = payload.limit() == end;
+
+			sendBufferFrame(first ? opcode : 0, last, payload);
+			first = false;
+
+			if (!last) {
+				if (mApplicationBuffer.position() >= mMaxBatchBytes || mBatchFrames >= mMaxBatchFrames) {
+					flushBuffer();
+				}
+				sendControlFrames();
+			}
+		} while (payload.position() < end);
+	}
+
+
+	/**
+	 * Send pings and pongs queued meanwhile, between two fragments of a
+	 * message. They are flushed right away instead of waiting for the next
+	 * fragment. A failing one is reported but does not affect the message.
+	 */
+	private void sendControlFrames() throws IOException {
+		if (mControlQueue.isEmpty()) {
+			return;
+		}
+
+		Object msg;
+		while ((msg = mControlQueue.poll()) != null) {
+			try {
+				processMessage(msg);
+			} catch (WebSocketException e) {
+				notify(new WebSocketMessage.Error(e));
+			}
+			if (mApplicationBuffer.position() >= mMaxBatchBytes || mBatchFrames >= mMaxBatchFrames) {
+				flushBuffer();
+			}
+		}
+		flushBuffer();
 	}
 
 
@@ -286,6 +904,66 @@ public class WebSocketWriter extends Thread {
 	 * @param length     Length of the chunk within payload to send.
 	 */
 	protected void sendFrame(int opcode, boolean fin, byte[] payload, int offset, int length) throws IOException {
+		int mask = putFrameHeader(opcode, fin, length);
+
+		if (length > 0) {
+			// mask the copy in the application buffer, the caller's payload stays untouched
+			int position = mApplicationBuffer.position();
+			mApplicationBuffer.put(payload, offset, length);
+			if (mWebSocketOptions.getMaskClientFrames()) {
+				maskPayload(mApplicationBuffer, position, length, mask);
+			}
+		}
+	}
+
+
+	/**
+	 * Sends a WebSockets frame with the remaining octets of a buffer as
+	 * payload, copied (and masked) straight into the application buffer.
+	 * The buffer's position is advanced past the payload.
+	 *
+	 * @param opcode     The WebSocket frame opcode.
+	 * @param fin        FIN flag for WebSocket frame.
+	 * @param payload    Frame payload (heap, direct or sliced buffer).
+	 */
+	private void sendBufferFrame(int opcode, boolean fin, ByteBuffer payload) throws IOException {
+		int length = payload.remaining();
+		int mask = putFrameHeader(opcode, fin, length);
+
+		if (length > 0) {
+			int position = mApplicationBuffer.position();
+			mApplicationBuffer.put(payload);
+			if (mWebSocketOptions.getMaskClientFrames()) {
+				maskPayload(mApplicationBuffer, position, length, mask);
+			}
+		}
+	}
+
+
+	/**
+	 * Get size of the frame header putFrameHeader() writes.
+	 *
+	 * @param length     Length of the frame payload.
+	 * @return           Header size in octets, including the mask.
+	 */
+	private int frameHeaderSize(int length) {
+		int size = length <= 125 ? 2 : (length <= 0xffff ? 4 : 10);
+		if (mWebSocketOptions.getMaskClientFrames()) {
+			size += 4;
+		}
+		return size;
+	}
+
+
+	/**
+	 * Put WebSockets frame header into the application buffer.
+	 *
+	 * @param opcode     The WebSocket frame opcode.
+	 * @param fin        FIN flag for WebSocket frame.
+	 * @param length     Length of the frame payload.
+	 * @return           Frame mask, or 0 when frames are not masked.
+	 */
+	private int putFrameHeader(int opcode, boolean fin, int length) {
 		// first octet
 		byte b0 = 0;
 		if (fin) {
@@ -293,6 +971,7 @@ public class WebSocketWriter extends Thread {
 		}
 		b0 |= (byte) opcode;
 		mApplicationBuffer.put(b0);
+		++mBatchFrames;
 
 		// second octet
 		byte b1 = 0;
@@ -309,42 +988,69 @@ public class WebSocketWriter extends Thread {
 		} else if (len <= 0xffff) {
 			b1 |= (byte) (126 & 0xff);
 			mApplicationBuffer.put(b1);
-			mApplicationBuffer.put(new byte[] {(byte)((len >> 8) & 0xff), (byte)(len & 0xff)});
+			mApplicationBuffer.putShort((short) len);
 		} else {
 			b1 |= (byte) (127 & 0xff);
 			mApplicationBuffer.put(b1);
-			mApplicationBuffer.put(new byte[] {(byte)((len >> 56) & 0xff),
-					(byte)((len >> 48) & 0xff),
-					(byte)((len >> 40) & 0xff),
-					(byte)((len >> 32) & 0xff),
-					(byte)((len >> 24) & 0xff),
-					(byte)((len >> 16) & 0xff),
-					(byte)((len >> 8)  & 0xff),
-					(byte)(len         & 0xff)});
+			mApplicationBuffer.putLong(len);
 		}
 
-		byte mask[] = null;
+		int mask = 0;
 		if (mWebSocketOptions.getMaskClientFrames()) {
 			// a mask is always needed, even without payload
 			mask = newFrameMask();
-			mApplicationBuffer.put(mask[0]);
-			mApplicationBuffer.put(mask[1]);
-			mApplicationBuffer.put(mask[2]);
-			mApplicationBuffer.put(mask[3]);
+			mApplicationBuffer.putInt(mask);
 		}
+		return mask;
+	}
 
-		if (len > 0) {
-			if (mWebSocketOptions.getMaskClientFrames()) {
-				/// \todo optimize masking
-				/// \todo masking within buffer of output stream
-				for (int i = 0; i < len; ++i) {
-					payload[i + offset] ^= mask[i % 4];
-				}
-			}
-			mApplicationBuffer.put(payload, offset, length);
+
+	/**
+	 * Mask frame payload within the application buffer, eight octets at a
+	 * time using the mask repeated to a long, then the remaining octets.
+	 *
+	 * @param buffer     Application buffer.
+	 * @param position   Absolute position of payload within buffer.
+	 * @param length     Payload length.
+	 * @param mask       Frame mask (4 octets, big endian).
+	 */
+	static void maskPayload(ByteBuffer buffer, int position, int length, int mask) {
+		final long mask64 = (mask & 0xffffffffL) * 0x100000001L;
+		final int end = position + length;
+
+		int i = position;
+		for (; i + 8 <= end; i += 8) {
+			buffer.putLong(i, buffer.getLong(i) ^ mask64);
+		}
+		for (; i < end; ++i) {
+			buffer.put(i, (byte) (buffer.get(i) ^ (mask >>> (24 - 8 * ((i - position) & 3)))));
 		}
 	}
 
+	/**
+	 * Check whether a message has to wait for the streamed or file message
+	 * being sent, as its frames must not interleave with that message's.
+	 * A close waits as well, since no frame of that message may follow it.
+	 */
+	private boolean isHeldBack(Object msg) {
+		if (msg instanceof WebSocketMessage.TrackedMessage) {
+			msg = ((WebSocketMessage.TrackedMessage) msg).mMessage;
+		}
+		if (!mStreaming && mFile == null || msg == mFile) {
+			return false;
+		}
+		if (msg instanceof WebSocketMessage.TextFragment || msg instanceof WebSocketMessage.BinaryFragment) {
+			return mFile != null;
+		}
+		return msg instanceof WebSocketMessage.Close
+				|| msg instanceof WebSocketMessage.TextMessage
+				|| msg instanceof WebSocketMessage.RawTextMessage
+				|| msg instanceof WebSocketMessage.BinaryMessage
+				|| msg instanceof WebSocketMessage.ByteBufferMessage
+				|| msg instanceof WebSocketMessage.FileMessage
+				|| msg instanceof PreparedMessage;
+	}
+
 	/**
 	 * Process WebSockets or control message from master. Normally,
 	 * there should be no reason to override this. If you do, you
@@ -355,12 +1061,31 @@ public class WebSocketWriter extends Thread {
 	 */
 	protected void processMessage(Object msg) throws IOException, WebSocketException {
 
+		if (isHeldBack(msg)) {
+			mDeferred.add(msg);
+			return;
+		}
+
 		if (msg instanceof WebSocketMessage.TextMessage) {
 			sendTextMessage((WebSocketMessage.TextMessage) msg);
 		} else if (msg instanceof WebSocketMessage.RawTextMessage) {
 			sendRawTextMessage((WebSocketMessage.RawTextMessage) msg);
 		} else if (msg instanceof WebSocketMessage.BinaryMessage) {
 			sendBinaryMessage((WebSocketMessage.BinaryMessage) msg);
+		} else if (msg instanceof WebSocketMessage.ByteBufferMessage) {
+			sendByteBufferMessage((WebSocketMessage.ByteBufferMessage) msg);
+		} else if (msg instanceof PreparedMessage) {
+			sendPreparedMessage((PreparedMessage) msg);
+		} else if (msg instanceof WebSocketMessage.TrackedMessage) {
+			sendTrackedMessage((WebSocketMessage.TrackedMessage) msg);
+		} else if (msg instanceof WebSocketMessage.FileMessage) {
+			sendFileFragment((WebSocketMessage.FileMessage) msg);
+		} else if (msg instanceof WebSocketMessage.BinaryFragment) {
+			WebSocketMessage.BinaryFragment fragment = (WebSocketMessage.BinaryFragment) msg;
+			sendStreamFragment(2, fragment.mPayload, fragment.mLast);
+		} else if (msg instanceof WebSocketMessage.TextFragment) {
+			WebSocketMessage.TextFragment fragment = (WebSocketMessage.TextFragment) msg;
+			sendStreamFragment(1, fragment.mPayload, fragment.mLast);
 		} else if (msg instanceof WebSocketMessage.Ping) {
 			sendPing((WebSocketMessage.Ping) msg);
 		} else if (msg instanceof WebSocketMessage.Pong) {
@@ -370,21 +1095,57 @@ public class WebSocketWriter extends Thread {
 		} else if (msg instanceof WebSocketMessage.ClientHandshake) {
 			sendClientHandshake((WebSocketMessage.ClientHandshake) msg);
 		} else if (msg instanceof WebSocketMessage.Quit) {
-			Looper.myLooper().quit();
-
-			Log.d(TAG, "WebSocket writer ended.");
+			if (mFile != null) {
+				finishFile();
+			}
+			synchronized (mSendBufferLock) {
+				mQuit = true;
+				mSendBufferLock.notifyAll();
+			}
 		} else {
 			processAppMessage(msg);
 		}
 	}
 
-	public void writeMessageToBuffer(Message message) {
+	/**
+	 * Format all queued messages, coalescing their frames in the
+	 * application buffer, which is written to the socket once it holds
+	 * the maximum batch size (octets or frames) and when the queue is empty.
+	 */
+	private void drainQueue() {
+		mApplicationBuffer.clear();
+		mBatchFrames = 0;
+
 		try {
-			mApplicationBuffer.clear();
-			processMessage(message.obj);
-			mApplicationBuffer.flip();
+			Object message;
+			while ((message = nextMessage()) != null) {
+				if (mSendHighWatermark > 0) {
+					released(message);
+				}
+
+				int position = mApplicationBuffer.position();
+				int frames = mBatchFrames;
+				int flushes = mFlushCount;
+				try {
+					processMessage(message);
+				} catch (WebSocketException e) {
+					// drop what the failed message formatted so far, but keep the batch
+					if (flushes == mFlushCount) {
+						mApplicationBuffer.position(position);
+						mBatchFrames = frames;
+					}
+					notify(new WebSocketMessage.Error(e));
+				}
+
+				if (message instanceof WebSocketMessage.Quit) {
+					break;
+				}
+				if (mApplicationBuffer.position() >= mMaxBatchBytes || mBatchFrames >= mMaxBatchFrames) {
+					flushBuffer();
+				}
+			}
 
-			mOutputStream.write(mApplicationBuffer.array(), mApplicationBuffer.position(), mApplicationBuffer.limit());
+			flushBuffer();
 		} catch (SocketException e) {
 			Log.e(TAG, "run() : SocketException (" + e.toString() + ")");
 
@@ -397,6 +1158,56 @@ public class WebSocketWriter extends Thread {
 		}
 	}
 
+	/**
+	 * Take the next message to send, by lane priority.
+	 *
+	 * @return           Message, or null when all lanes are empty.
+	 */
+	private Object nextMessage() {
+		Object message = mControlQueue.poll();
+		if (message == null) {
+			message = mHighQueue.poll();
+			if (message == null) {
+				message = mQueue.poll();
+			}
+		}
+		return message;
+	}
+
+	/**
+	 * Check whether all lanes are empty.
+	 */
+	private boolean isIdle() {
+		return mControlQueue.isEmpty() && mHighQueue.isEmpty() && mQueue.isEmpty();
+	}
+
+	/**
+	 * Write frames coalesced in the application buffer to the socket.
+	 */
+	private void flushBuffer() throws IOException {
+		if (mApplicationBuffer.position() > 0) {
+			try {
+				mOutputStream.write(mApplicationBuffer.array(), 0, mApplicationBuffer.position());
+			} catch (IOException e) {
+				for (WebSocket.WebSocketSendCallback callback : mUnflushedCallbacks) {
+					callback.onSendFailed(e);
+				}
+				mUnflushedCallbacks.clear();
+				throw e;
+			}
+			mApplicationBuffer.clear();
+			++mFlushCount;
+		}
+		mBatchFrames = 0;
+
+		if (!mUnflushedCallbacks.isEmpty()) {
+			for (WebSocket.WebSocketSendCallback callback : mUnflushedCallbacks) {
+				callback.onSent();
+			}
+			mUnflushedCallbacks.clear();
+		}
+	}
+
 	/**
 	 * Process message other than plain WebSockets or control message.
 	 * This is intended to be overridden in derived classes.
@@ -414,16 +1225,18 @@ public class WebSocketWriter extends Thread {
 	public void run() {	
 		OutputStream outputStream = null;
 		try {
-			outputStream = mSocket.getOutputStream();
+			SocketChannel socketChannel = mSocket.getChannel();
+			if (socketChannel != null && !socketChannel.isBlocking()) {
+				// channel served by a reader pool
+				outputStream = new SocketChannelOutputStream(socketChannel);
+			} else {
+				outputStream = mSocket.getOutputStream();
+			}
 		} catch (IOException e) {
 			Log.e(TAG, e.getLocalizedMessage());
 		}
 		
 		this.mOutputStream = outputStream;
-		
-		Looper.prepare();
-
-		this.mHandler = new ThreadHandler(this);
 
 		synchronized (this) {
 			Log.d(TAG, "WebSocker writer running.");
@@ -431,32 +1244,52 @@ public class WebSocketWriter extends Thread {
 			notifyAll();
 		}
 
-		Looper.loop();
-	}
-
-
-
-	//
-	// Private handler class
-	private static class ThreadHandler extends Handler {
-		private final WeakReference<WebSocketWriter> mWebSocketWriterReference;
-
-
-
-		public ThreadHandler(WebSocketWriter webSocketWriter) {
-			super();
+		while (!mQuit && !isInterrupted()) {
+			drainQueue();
+			if (!mQuit) {
+				awaitMessages();
+			}
+		}
 
-			this.mWebSocketWriterReference = new WeakReference<WebSocketWriter>(webSocketWriter);
+		// tell senders of messages left behind
+		WebSocketException closed = new WebSocketException("connection closed");
+		Object message;
+		while ((message = nextMessage()) != null) {
+			failMessage(message, closed);
+		}
+		for (Object deferred : mDeferred) {
+			failMessage(deferred, closed);
+		}
+		mDeferred.clear();
+
+		if (mOutputStream instanceof SocketChannelOutputStream) {
+			// the channel is closed by the connection
+			try {
+				((SocketChannelOutputStream) mOutputStream).release();
+			} catch (IOException e) {
+				Log.e(TAG, "cannot close selector (" + e.toString() + ")");
+			}
 		}
 
+		Log.d(TAG, "WebSocket writer ended.");
+	}
 
 
-		@Override
-		public void handleMessage(Message message) {
-			WebSocketWriter webSocketWriter = mWebSocketWriterReference.get();
-			if (webSocketWriter != null) {
-				webSocketWriter.writeMessageToBuffer(message);
+	/**
+	 * Park the writer thread until messages are forwarded. Announcing the
+	 * wait before checking the queue once more makes sure a message
+	 * forwarded concurrently either is seen or unparks the thread. The
+	 * wait is announced again after each wakeup, since the flag may have
+	 * been cleared by a producer already.
+	 */
+	private void awaitMessages() {
+		while (isIdle() && !isInterrupted()) {
+			mWaiting.set(true);
+			if (!isIdle()) {
+				break;
 			}
+			LockSupport.park(this);
 		}
+		mWaiting.set(false);
 	}
 }